@@ -18,31 +18,38 @@ package com.example.android.bluetoothchat;
 
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
-import android.util.Log;
+import android.support.v4.app.FragmentManager;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.Toast;
 
 import com.example.android.canvas.CanvasView;
+import com.example.android.canvas.PageOverviewAdapter;
+import com.example.android.canvas.ThumbnailService;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.TraceLog;
 
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
 
 /**
  * This fragment controls Bluetooth to communicate with other devices.
@@ -58,6 +65,11 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
 
+    // a stroke that gets no event for this long is ended as if its END had arrived
+    private static final long STROKE_END_TIMEOUT_MS = 100;
+    // on-screen pen widths in pixels the pen width menu item steps through
+    private static final float[] PEN_WIDTHS = {10, 20, 40};
+
     /**
      * Name of the connected device
      */
@@ -73,12 +85,26 @@ public class BluetoothChatFragment extends Fragment {
      */
     private BluetoothChatService mChatService = null;
 
-    private SenselInput prev_input = null;
-
     private CanvasView canvasView = null;
 
+    /**
+     * Keeps the canvas state while the activity is recreated
+     */
+    private CanvasStateFragment canvasState = null;
+
     private Gesture gesture = null;
-    private Timer timer;
+    /**
+     * Drops palms and light touches right after parsing
+     */
+    private final ContactFilter contactFilter = new ContactFilter();
+    /**
+     * Drops moves too small to change the ink, just before the canvas
+     */
+    private final MoveDecimator moveDecimator = new MoveDecimator();
+    /**
+     * Ends strokes whose END event got lost
+     */
+    private StrokeEndWatchdog strokeEndWatchdog;
 
     private boolean gestureMode;
 
@@ -97,7 +123,20 @@ public class BluetoothChatFragment extends Fragment {
         }
 
 //        gesture = new Gesture(gestureHandler);
-        timer = new Timer();
+        strokeEndWatchdog = new StrokeEndWatchdog(STROKE_END_TIMEOUT_MS,
+                new StrokeEndWatchdog.Listener() {
+                    @Override
+                    public void onStrokeEndMissed(SenselInput last) {
+                        contactFilter.forget(last.getContactID());
+                        moveDecimator.forget(last.getContactID());
+                        // last may still be in the gesture's open frame, where an END
+                        // would look like a lifted contact; the canvas gets an END of its own
+                        SenselInput end = new SenselInput(last);
+                        end.setEvent(SenselInput.Event.END);
+                        canvasView.onSenselEvent(end);
+                        Log.v(TAG, "set end");
+                    }
+                });
         gesture = new Gesture(this);
 
         gestureMode=false;
@@ -121,6 +160,8 @@ public class BluetoothChatFragment extends Fragment {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        Log.i(TAG, contactFilter + ", moves decimated: " + moveDecimator.getDroppedCount()
+                + ", strokes ended without END: " + strokeEndWatchdog.getSynthesizedEndCount());
         if (mChatService != null) {
             mChatService.stop();
         }
@@ -151,6 +192,37 @@ public class BluetoothChatFragment extends Fragment {
     @Override
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
         canvasView = (CanvasView) view.findViewById(R.id.canvasView);
+
+        // pick up the notebook, page and rendered tiles from before a configuration change
+        FragmentManager fragmentManager = getFragmentManager();
+        canvasState = (CanvasStateFragment) fragmentManager.findFragmentByTag(CanvasStateFragment.TAG);
+        if (canvasState == null) {
+            canvasState = new CanvasStateFragment();
+            fragmentManager.beginTransaction().add(canvasState, CanvasStateFragment.TAG).commit();
+        }
+        CanvasView.State state = canvasState.take();
+        if (state != null) {
+            canvasView.restoreState(state);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        // before API 14 this is the only warning the canvas gets; later the pool hears of
+        // memory pressure itself, and trimming twice costs nothing
+        if (canvasView != null) {
+            canvasView.getBitmapPool().trimTo(0);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        // the view going away gets no more events, synthesized ones included
+        strokeEndWatchdog.cancel();
+        Log.i(TAG, canvasView.getMotionPredictor().toString());
+        canvasState.keep(canvasView.retainState());
+        super.onDestroyView();
     }
 
     /**
@@ -178,6 +250,7 @@ public class BluetoothChatFragment extends Fragment {
                 }
             });
             paintcolorIM = (ImageView) getView().findViewById(R.id.paintcolorIM);
+            paintcolorIM.setBackgroundColor(canvasView.getPaintColor());
             mode_button = (Button) getView().findViewById(R.id.mode_button);
             mode_button.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -250,38 +323,74 @@ public class BluetoothChatFragment extends Fragment {
 //    };
 
     public void gestureDetected(Boolean isLongPress, Gesture.Direction dir, Gesture.NumFingers numFingers){
-        Log.v(TAG, isLongPress + " " + dir + " " + numFingers);
+        TraceLog.trace(TraceEvents.GESTURE, dir.ordinal(), numFingers.ordinal(),
+                isLongPress ? 1 : 0, 0);
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, isLongPress + " " + dir + " " + numFingers);
+        }
 
+        // the gesture's own strokes go before the colour change is recorded, otherwise undoing
+        // them would revert the colour change instead
         if(Gesture.Direction.UP.equals(dir) && Gesture.NumFingers.THREE.equals(numFingers)) {
+            discardGestureStrokes();
             canvasView.changeColorUp();
-            canvasView.undo();
             paintcolorIM.setBackgroundColor(canvasView.getPaintColor());
             Toast.makeText(getActivity(),
                     "Color change up", Toast.LENGTH_SHORT)
                     .show();
         }
         else if(Gesture.Direction.DOWN.equals(dir) && Gesture.NumFingers.THREE.equals(numFingers)) {
+            discardGestureStrokes();
             canvasView.changeColorDown();
-            canvasView.undo();
             paintcolorIM.setBackgroundColor(canvasView.getPaintColor());
             Toast.makeText(getActivity(),
                     "Color change down", Toast.LENGTH_SHORT)
                     .show();
         }
 
-        if(Gesture.Direction.RIGHT.equals(dir) && Gesture.Direction.LEFT.equals(dir))
+        else if(Gesture.Direction.LEFT.equals(dir) && Gesture.NumFingers.THREE.equals(numFingers)) {
+            discardGestureStrokes();
             canvasView.undo();
-    }
+            paintcolorIM.setBackgroundColor(canvasView.getPaintColor());
+        }
+        else if(Gesture.Direction.RIGHT.equals(dir) && Gesture.NumFingers.THREE.equals(numFingers)) {
+            discardGestureStrokes();
+            canvasView.redo();
+            paintcolorIM.setBackgroundColor(canvasView.getPaintColor());
+        }
 
-    private void setEnd() {
+        // two-finger swipes turn pages like a book: left for the next page, right for the previous
+        else if(Gesture.Direction.LEFT.equals(dir) && Gesture.NumFingers.TWO.equals(numFingers)) {
+            discardGestureStrokes();
+            canvasView.turnToPage(canvasView.getPageIndex() + 1);
+            showPageNumber();
+        }
+        else if(Gesture.Direction.RIGHT.equals(dir) && Gesture.NumFingers.TWO.equals(numFingers)) {
+            if (canvasView.getPageIndex() > 0) {
+                discardGestureStrokes();
+                canvasView.turnToPage(canvasView.getPageIndex() - 1);
+                showPageNumber();
+            }
+        }
+    }
 
-        if(prev_input != null) {
-            prev_input.setEvent(SenselInput.Event.END);
-            canvasView.onSenselEvent(prev_input);
-            Log.v(TAG, "set end");
+    /**
+     * Throws away what the fingers of the gesture just detected drew. In gesture mode their
+     * events never reach the canvas, so there is nothing to throw away.
+     */
+    private void discardGestureStrokes() {
+        if (!gestureMode) {
+            canvasView.discardStrokes(gesture.getContactIDs(), gesture.getStartTime());
         }
     }
 
+    private void showPageNumber() {
+        Toast.makeText(getActivity(),
+                "Page " + (canvasView.getPageIndex() + 1) + " of " + canvasView.getPageCount(),
+                Toast.LENGTH_SHORT)
+                .show();
+    }
+
     /**
      * The Handler that gets information back from the BluetoothChatService
      */
@@ -307,6 +416,9 @@ public class BluetoothChatFragment extends Fragment {
                 case Constants.MESSAGE_WRITE:
                     break;
                 case Constants.MESSAGE_READ:
+                    // how long the read waited behind other work on the UI thread
+                    TraceLog.trace(TraceEvents.BT_DISPATCH, msg.arg1,
+                            (int) (SystemClock.uptimeMillis() - msg.getWhen()));
                     byte[] readBuf = (byte[]) msg.obj;
                     // construct a string from the valid bytes in the buffer
                     String readMessage = new String(readBuf, 0, msg.arg1);
@@ -314,46 +426,36 @@ public class BluetoothChatFragment extends Fragment {
                    // gesture.add(readMessage);
                     String[] msgSplit = readMessage.split("\n");
                     ArrayList<SenselInput> valid_inputs = new ArrayList<>();
+                    long now = SystemClock.uptimeMillis();
 
                     for(String senselMsg : msgSplit ) {
-                        //detect
-                        gesture.add(senselMsg);
+                        if (Gesture.FRAME_END.equals(senselMsg)) {
+                            gesture.endFrame();
+                            continue;
+                        }
+                        // parsed once; palms and light touches stop here, before gestures and ink
                         SenselInput new_input = new SenselInput(senselMsg);
-                        if(new_input.isValid())
+                        new_input.setTimestamp(now);
+                        if(new_input.isValid() && contactFilter.accept(new_input)) {
+                            //detect
+                            gesture.add(new_input);
                             valid_inputs.add(new_input);
-
+                        }
                     }
 
-                    if(!gestureMode && valid_inputs.size() == 1){
-                        SenselInput current_input = valid_inputs.get(0);
-                        if(current_input.isValid()) {
-                            if(SenselInput.Event.START.equals(current_input.getEvent()) ||  SenselInput.Event.MOVE.equals(current_input.getEvent()) ) {
-                                timer.cancel();
-                                timer = new Timer();
-
-                                timer.schedule(new TimerTask() {
-                                    @Override
-                                    public void run() {
-
-                                        getActivity().runOnUiThread(new Runnable() {
-                                                    @Override
-                                                    public void run() {
-                                                        setEnd();
-                                                    }
-                                        });
-                                    }
-                                }, 100);
-                            }
-                            else if (SenselInput.Event.END.equals(current_input.getEvent())) {
-                                timer.cancel();
-                            }
-                            if (prev_input != null && prev_input.getDistance(current_input) > 20) {
-                                prev_input.setEvent(SenselInput.Event.END);
-                                canvasView.onSenselEvent(prev_input);
-                            }
-
+                    // every contact draws its own stroke; the canvas keeps them apart by id
+                    for (int i = 0; !gestureMode && i < valid_inputs.size(); i++) {
+                        SenselInput current_input = valid_inputs.get(i);
+                        if(SenselInput.Event.START.equals(current_input.getEvent()) ||  SenselInput.Event.MOVE.equals(current_input.getEvent()) ) {
+                            strokeEndWatchdog.arm(current_input);
+                        }
+                        else if (SenselInput.Event.END.equals(current_input.getEvent())) {
+                            strokeEndWatchdog.disarm(current_input.getContactID());
+                        }
+                        // the watchdog and gestures still see every event: a pen held still
+                        // sends only moves that are decimated, and must not be taken as lifted
+                        if (moveDecimator.accept(current_input)) {
                             canvasView.onSenselEvent(current_input);
-                            prev_input = current_input;
                         }
                     }
 
@@ -446,8 +548,65 @@ public class BluetoothChatFragment extends Fragment {
                 ensureDiscoverable();
                 return true;
             }
+            case R.id.page_overview: {
+                showPageOverview();
+                return true;
+            }
+            case R.id.pen_width: {
+                nextPenWidth();
+                return true;
+            }
+            case R.id.export_pdf: {
+                canvasView.exportPdf();
+                return true;
+            }
+            case R.id.export_svg: {
+                canvasView.exportSvg();
+                return true;
+            }
         }
         return false;
     }
 
+    /** Switches to the next of the pen widths, after the widest back to the thinnest. */
+    private void nextPenWidth() {
+        float width = PEN_WIDTHS[0];
+        for (int i = 0; i < PEN_WIDTHS.length - 1; i++) {
+            if (canvasView.getPenWidth() == PEN_WIDTHS[i]) {
+                width = PEN_WIDTHS[i + 1];
+            }
+        }
+        canvasView.setPenWidth(width);
+        Toast.makeText(getActivity(), "Pen width " + (int) width, Toast.LENGTH_SHORT).show();
+    }
+
+    /** Shows thumbnails of all pages; picking one turns to it. */
+    private void showPageOverview() {
+        ThumbnailService thumbnails = canvasView.getThumbnails();
+        final PageOverviewAdapter adapter = new PageOverviewAdapter(getActivity(), thumbnails,
+                canvasView.getPageCount());
+        GridView grid = new GridView(getActivity());
+        grid.setNumColumns(GridView.AUTO_FIT);
+        grid.setColumnWidth(thumbnails.getWidth());
+        grid.setAdapter(adapter);
+        final AlertDialog dialog = new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.page_overview)
+                .setView(grid)
+                .create();
+        grid.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                canvasView.turnToPage(position);
+                dialog.dismiss();
+            }
+        });
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface d) {
+                adapter.close();
+            }
+        });
+        dialog.show();
+    }
+
 }
@@ -26,6 +26,7 @@ import android.os.Handler;
 import android.os.Message;
 
 import com.example.android.common.logger.Log;
+import com.example.android.common.logger.TraceLog;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -477,6 +478,7 @@ public class BluetoothChatService {
                 try {
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
+                    TraceLog.trace(TraceEvents.BT_READ, bytes);
 
                     // Send the obtained bytes to the UI Activity
                     mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
@@ -0,0 +1,34 @@
+package com.example.android.bluetoothchat;
+
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+
+import com.example.android.canvas.CanvasView;
+
+/**
+ * Headless fragment that is retained across configuration changes, holding the state of the
+ * {@link CanvasView} between the view destroyed by a change and the one that replaces it.
+ */
+public class CanvasStateFragment extends Fragment {
+
+    public static final String TAG = "CanvasStateFragment";
+
+    private CanvasView.State canvasState;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    public void keep(CanvasView.State state) {
+        canvasState = state;
+    }
+
+    /** Returns the kept state, or null if there is none, and stops holding it. */
+    public CanvasView.State take() {
+        CanvasView.State state = canvasState;
+        canvasState = null;
+        return state;
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.android.bluetoothchat;
+
+import java.util.Locale;
+
+/**
+ * First stage after parsing: decides which pad contacts are pens or fingers, so that palms,
+ * resting hands and light touches never reach gesture detection or the canvas.
+ *
+ * <p>A contact is rejected for good, until the pad reports it lifted, once its contact ellipse
+ * is larger than a fingertip, or once it has stayed down in one place for longer than a pen
+ * ever rests. Events pressing more lightly than the force threshold are dropped one by one. To
+ * keep the events that get through consistent, the first event of a contact that gets through
+ * is turned into a START, and a contact that gets rejected after some of its events got through
+ * has the rejected event turned into an END.</p>
+ *
+ * <p>The limits can be changed at any time and apply to the next event. This class is not
+ * thread-safe.</p>
+ */
+public class ContactFilter {
+
+    /** Why an event was dropped. */
+    public enum Reason {
+        /** Pressing more lightly than the force threshold. */
+        FORCE,
+        /** Contact ellipse too large for a fingertip or pen. */
+        PALM,
+        /** Contact stayed in place too long, like a hand resting on the pad. */
+        RESTING,
+        /** More contacts on the pad than are tracked. */
+        TOO_MANY
+    }
+
+    // pad units are mm; a fingertip is about 10mm across, a pen tip much less
+    public static final int DEFAULT_MIN_FORCE = 500;
+    public static final float DEFAULT_MAX_MAJOR = 20;
+    public static final float DEFAULT_MAX_MINOR = 14;
+    public static final long DEFAULT_REST_MILLIS = 1500;
+    public static final float DEFAULT_REST_DISTANCE = 2;
+
+    private int minForce = DEFAULT_MIN_FORCE;
+    private float maxMajor = DEFAULT_MAX_MAJOR;
+    private float maxMinor = DEFAULT_MAX_MINOR;
+    private long restMillis = DEFAULT_REST_MILLIS;
+    private float restDistance = DEFAULT_REST_DISTANCE;
+
+    // per slot: when and where the contact was first seen, whether it ever moved away from
+    // there, whether any of its events got through, and whether it has been rejected
+    private final ContactSlots slots = new ContactSlots();
+    private final long[] downTimes = new long[slots.capacity()];
+    private final float[] downX = new float[slots.capacity()];
+    private final float[] downY = new float[slots.capacity()];
+    private final boolean[] moved = new boolean[slots.capacity()];
+    private final boolean[] delivered = new boolean[slots.capacity()];
+    private final boolean[] rejected = new boolean[slots.capacity()];
+    private final long[] counts = new long[Reason.values().length];
+    private long accepted;
+
+    /** Events pressing more lightly than this are dropped. */
+    public void setMinForce(int minForce) {
+        this.minForce = minForce;
+    }
+
+    /** Contacts whose ellipse axes grow beyond these, in mm, are taken for a palm. */
+    public void setMaxContactSize(float maxMajor, float maxMinor) {
+        this.maxMajor = maxMajor;
+        this.maxMinor = maxMinor;
+    }
+
+    /**
+     * Contacts that stay within distance mm of where they came down for longer than millis are
+     * taken for a resting hand. A millis of 0 turns this off.
+     */
+    public void setRestLimit(long millis, float distance) {
+        restMillis = millis;
+        restDistance = distance;
+    }
+
+    /**
+     * Decides whether an event goes on to the rest of the app, possibly changing its event type
+     * as described for the class.
+     */
+    public boolean accept(SenselInput input) {
+        long now = input.getTimestamp();
+        SenselInput.Event type = input.getEvent();
+        int slot = slots.find(input.getContactID());
+        if (SenselInput.Event.START.equals(type) || slot < 0) {
+            if (slot >= 0) {
+                // the END of the contact that had this id got lost
+                slots.release(slot);
+            }
+            if (SenselInput.Event.END.equals(type)) {
+                // nothing of the contact got through, so there is nothing to end
+                return false;
+            }
+            slot = slots.acquire(input.getContactID());
+            if (slot < 0) {
+                return reject(Reason.TOO_MANY);
+            }
+            downTimes[slot] = now;
+            downX[slot] = input.getX();
+            downY[slot] = input.getY();
+            moved[slot] = false;
+            delivered[slot] = false;
+            rejected[slot] = false;
+        }
+
+        if (SenselInput.Event.END.equals(type)) {
+            boolean wasDelivered = delivered[slot] && !rejected[slot];
+            slots.release(slot);
+            if (wasDelivered) {
+                accepted++;
+            }
+            return wasDelivered;
+        }
+        if (rejected[slot]) {
+            return false;
+        }
+
+        Reason reason = null;
+        if (input.getMajor() > maxMajor || input.getMinor() > maxMinor) {
+            reason = Reason.PALM;
+        } else if (isResting(slot, input, now)) {
+            reason = Reason.RESTING;
+        }
+        if (reason != null) {
+            rejected[slot] = true;
+            counts[reason.ordinal()]++;
+            if (delivered[slot]) {
+                // end what already got through, so that the stroke or gesture is closed
+                input.setEvent(SenselInput.Event.END);
+                return true;
+            }
+            return false;
+        }
+
+        if (input.getForce() < minForce) {
+            return reject(Reason.FORCE);
+        }
+        if (!delivered[slot]) {
+            // the contact's START may have been too light; whatever gets through first starts it
+            input.setEvent(SenselInput.Event.START);
+            delivered[slot] = true;
+        }
+        accepted++;
+        return true;
+    }
+
+    /** Forgets a contact whose END got lost, so that its id starts afresh. */
+    public void forget(int contactId) {
+        int slot = slots.find(contactId);
+        if (slot >= 0) {
+            slots.release(slot);
+        }
+    }
+
+    /** Number of events dropped for a reason. */
+    public long getRejectedCount(Reason reason) {
+        return counts[reason.ordinal()];
+    }
+
+    /** Number of events that got through. */
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("ContactFilter[accepted=").append(accepted);
+        for (Reason reason : Reason.values()) {
+            out.append(", ").append(reason.name().toLowerCase(Locale.US)).append('=')
+                    .append(counts[reason.ordinal()]);
+        }
+        return out.append(']').toString();
+    }
+
+    private boolean isResting(int slot, SenselInput input, long now) {
+        if (!moved[slot]) {
+            float dx = input.getX() - downX[slot];
+            float dy = input.getY() - downY[slot];
+            moved[slot] = dx * dx + dy * dy > restDistance * restDistance;
+        }
+        return restMillis > 0 && !moved[slot] && now - downTimes[slot] > restMillis;
+    }
+
+    private boolean reject(Reason reason) {
+        counts[reason.ordinal()]++;
+        return false;
+    }
+}
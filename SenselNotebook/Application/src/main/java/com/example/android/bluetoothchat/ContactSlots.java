@@ -0,0 +1,94 @@
+package com.example.android.bluetoothchat;
+
+import java.util.Arrays;
+
+/**
+ * Gives each pad contact that is down one of a fixed number of slots, so that per-contact state
+ * can be kept in plain arrays indexed by slot instead of in maps keyed by boxed contact ids.
+ *
+ * <p>The pad reports only a handful of contacts at a time, so lookups scan the slots. This
+ * class is not thread-safe.</p>
+ */
+public class ContactSlots {
+
+    /** Default number of contacts tracked at once. */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final int FREE = -1;
+
+    private final int[] contactIds;
+    private int size;
+
+    public ContactSlots() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of contacts tracked at once.
+     */
+    public ContactSlots(int capacity) {
+        contactIds = new int[capacity];
+        Arrays.fill(contactIds, FREE);
+    }
+
+    public int capacity() {
+        return contactIds.length;
+    }
+
+    /** Number of slots in use. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the slot of a contact, or -1 if it has none. */
+    public int find(int contactId) {
+        for (int slot = 0; slot < contactIds.length; slot++) {
+            if (contactIds[slot] == contactId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of a contact, giving it a free one if it has none yet, or -1 if all slots
+     * are taken.
+     */
+    public int acquire(int contactId) {
+        int slot = find(contactId);
+        if (slot >= 0) {
+            return slot;
+        }
+        for (slot = 0; slot < contactIds.length; slot++) {
+            if (contactIds[slot] == FREE) {
+                contactIds[slot] = contactId;
+                size++;
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /** Frees a slot for the next new contact. */
+    public void release(int slot) {
+        if (contactIds[slot] != FREE) {
+            contactIds[slot] = FREE;
+            size--;
+        }
+    }
+
+    public boolean isUsed(int slot) {
+        return contactIds[slot] != FREE;
+    }
+
+    /** Contact id held by a slot that is in use. */
+    public int getContactId(int slot) {
+        return contactIds[slot];
+    }
+
+    /** Frees every slot. */
+    public void clear() {
+        Arrays.fill(contactIds, FREE);
+        size = 0;
+    }
+}
@@ -1,11 +1,13 @@
 package com.example.android.bluetoothchat;
 
-import android.util.Log;
+import com.example.android.common.logger.Log;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Created by Gerry on 2015/9/27.
@@ -16,6 +18,9 @@ public class Gesture {
     private static final int short_threshold = 2;
     private static final int long_threshold = 60;
 
+    /** Line the pad sends after the contacts of each frame. */
+    public static final String FRAME_END = "****";
+
 //    private Handler gestureHandle;
     private LinkedList<SenselInputGroup> queue;
     private BluetoothChatFragment handler;
@@ -23,6 +28,9 @@ public class Gesture {
     private Direction dir;
     private NumFingers numFingers;
     private boolean longPress;
+    // contacts that made the last gesture, and when the first of them came down
+    private Set<Integer> contactIDs = new HashSet<Integer>();
+    private long startTime;
 //    private String messages;
 
     public enum Direction {UP, DOWN, LEFT, RIGHT, INVALID};
@@ -40,8 +48,14 @@ public class Gesture {
         longPress = false;
     }
 
-    public void add(String s){
-        if("****".equals(s) && queue.getLast().size() > 0) {
+    /** Adds a contact to the current frame. */
+    public void add(SenselInput input){
+        queue.getLast().add(input);
+    }
+
+    /** Closes the current frame, detecting a gesture once its contacts are lifted. */
+    public void endFrame(){
+        if(queue.getLast().size() > 0) {
             //TODO detect gesture here
             if(queue.getLast().isEnd()) {
                 Log.v(TAG, "Found end!!");
@@ -49,9 +63,6 @@ public class Gesture {
             }
             queue.addLast(new SenselInputGroup());
         }
-        else {
-            queue.getLast().addMessage(s);
-        }
     }
 
     private int  findNumFingers(){
@@ -126,9 +137,9 @@ public class Gesture {
             return;
         }
         double arctan = Math.atan(sumYDiff/sumXDiff);
-        Log.v(TAG, "xDiff " + sumXDiff);
-        Log.v(TAG, "yDiff" + sumYDiff);
-        Log.v(TAG, "arctan " + arctan);
+        Log.v(TAG, "xDiff {}", sumXDiff);
+        Log.v(TAG, "yDiff {}", sumYDiff);
+        Log.v(TAG, "arctan {}", arctan);
         if(arctan >= Math.PI/4){ // top or bottom
             if (sumYDiff >= 0 && sumXDiff >= 0)
                 dir = Direction.DOWN;
@@ -154,22 +165,37 @@ public class Gesture {
             return;
         }
         int fingerCount = findNumFingers();
-        Log.v(TAG, "finger count " + numFingers);
+        Log.v(TAG, "finger count {}", numFingers);
 
         if (queue.size() > long_threshold) {
-            Log.v(TAG, "long press, queue size " + queue.size());
+            Log.v(TAG, "long press, queue size {}", queue.size());
             longPress = true;
         }
 
+        // before findDirection, which takes frames off the queue
+        findContacts();
+
         //detect direction
         findDirection(fingerCount);
-        Log.v(TAG, "direction " + dir);
+        Log.v(TAG, "direction {}", dir);
 
         if(!NumFingers.ONE.equals(getNumFingers()))
             handler.gestureDetected(isLongPress(), dir, numFingers);
         queue.clear();
     }
 
+    private void findContacts() {
+        contactIDs = new HashSet<Integer>();
+        startTime = Long.MAX_VALUE;
+        for (SenselInputGroup inputGroup : queue) {
+            for (int contactID : inputGroup.getContactIDs()) {
+                contactIDs.add(contactID);
+                startTime = Math.min(startTime,
+                        inputGroup.getSenselInputByContactID(contactID).getTimestamp());
+            }
+        }
+    }
+
     public int numContacts() {
         return findNumFingers();
     }
@@ -185,4 +211,14 @@ public class Gesture {
     public boolean isLongPress(){
         return longPress;
     }
+
+    /** Contact ids of the fingers that made the last gesture. */
+    public Set<Integer> getContactIDs(){
+        return contactIDs;
+    }
+
+    /** Timestamp of the first event of the last gesture. */
+    public long getStartTime(){
+        return startTime;
+    }
 }
@@ -18,10 +18,16 @@
 package com.example.android.bluetoothchat;
 
 import android.os.Bundle;
-import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentTransaction;
 import android.view.Menu;
 
+import com.example.android.common.activities.SampleActivityBase;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.TraceLog;
+
+import java.io.File;
+import java.io.IOException;
+
 /**
  * A simple launcher activity containing a summary sample description, sample log and a custom
  * {@link android.support.v4.app.Fragment} which can display a view.
@@ -29,7 +35,7 @@ import android.view.Menu;
  * For devices with displays with a width of 720dp or greater, the sample log is always visible,
  * on other devices it's visibility is controlled by an item on the Action Bar.
  */
-public class MainActivity extends FragmentActivity {
+public class MainActivity extends SampleActivityBase {
 
     public static final String TAG = "MainActivity";
 
@@ -37,6 +43,7 @@ public class MainActivity extends FragmentActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        startTrace();
 
         if (savedInstanceState == null) {
             FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
@@ -45,4 +52,29 @@ public class MainActivity extends FragmentActivity {
             transaction.commit();
         }
     }
+
+    /**
+     * Starts the binary trace, once per process. It stays on in the field; the previous
+     * session's trace is kept beside it for a look after the fact.
+     */
+    private void startTrace() {
+        if (TraceLog.getTraceLog() != null) {
+            return;
+        }
+        try {
+            TraceLog traceLog = TraceLog.open(new File(getFilesDir(), "trace.bin"),
+                    TraceLog.DEFAULT_CAPACITY);
+            TraceEvents.define(traceLog);
+            TraceLog.setTraceLog(traceLog);
+        } catch (IOException e) {
+            Log.e(TAG, "could not start the trace", e);
+        }
+    }
+
+    @Override
+    public void initializeLogging() {
+        super.initializeLogging();
+        // per-event verbose logs from the pen and gesture paths are only built in debug builds
+        Log.setLevel(BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO);
+    }
 }
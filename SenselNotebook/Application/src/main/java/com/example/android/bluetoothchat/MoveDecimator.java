@@ -0,0 +1,77 @@
+package com.example.android.bluetoothchat;
+
+/**
+ * Drops MOVE events that add nothing to the ink: those that moved less than a threshold from
+ * the last event of the same contact that was passed on, without pressing noticeably harder or
+ * lighter either. START and END events always pass.
+ *
+ * <p>Distances are compared squared, so an event costs a few multiplications. Contact state
+ * lives in arrays indexed by {@link ContactSlots} slot. This class is not thread-safe.</p>
+ */
+public class MoveDecimator {
+
+    /** Default smallest movement passed on, in pad mm. */
+    public static final float DEFAULT_MIN_DISTANCE = 0.2f;
+    /** Default smallest change in force passed on. */
+    public static final int DEFAULT_MIN_FORCE_CHANGE = 100;
+
+    private float minDistanceSquared = DEFAULT_MIN_DISTANCE * DEFAULT_MIN_DISTANCE;
+    private int minForceChange = DEFAULT_MIN_FORCE_CHANGE;
+
+    // per slot: position and force of the last event passed on
+    private final ContactSlots slots = new ContactSlots();
+    private final float[] lastX = new float[slots.capacity()];
+    private final float[] lastY = new float[slots.capacity()];
+    private final int[] lastForce = new int[slots.capacity()];
+    private long dropped;
+
+    /**
+     * Sets the thresholds: a MOVE passes if it moved at least minDistance mm, or if its force
+     * changed by at least minForceChange.
+     */
+    public void setThresholds(float minDistance, int minForceChange) {
+        minDistanceSquared = minDistance * minDistance;
+        this.minForceChange = minForceChange;
+    }
+
+    /** Whether an event goes on to the canvas. */
+    public boolean accept(SenselInput input) {
+        SenselInput.Event type = input.getEvent();
+        if (SenselInput.Event.END.equals(type)) {
+            forget(input.getContactID());
+            return true;
+        }
+        int slot = slots.find(input.getContactID());
+        if (SenselInput.Event.MOVE.equals(type) && slot >= 0) {
+            float dx = input.getX() - lastX[slot];
+            float dy = input.getY() - lastY[slot];
+            if (dx * dx + dy * dy < minDistanceSquared
+                    && Math.abs(input.getForce() - lastForce[slot]) < minForceChange) {
+                dropped++;
+                return false;
+            }
+        } else if (slot < 0) {
+            slot = slots.acquire(input.getContactID());
+            if (slot < 0) {
+                return true;
+            }
+        }
+        lastX[slot] = input.getX();
+        lastY[slot] = input.getY();
+        lastForce[slot] = input.getForce();
+        return true;
+    }
+
+    /** Forgets a contact whose END got lost, so that its next event passes. */
+    public void forget(int contactId) {
+        int slot = slots.find(contactId);
+        if (slot >= 0) {
+            slots.release(slot);
+        }
+    }
+
+    /** Number of MOVE events dropped so far. */
+    public long getDroppedCount() {
+        return dropped;
+    }
+}
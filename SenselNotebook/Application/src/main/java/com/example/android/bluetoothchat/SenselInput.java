@@ -11,11 +11,22 @@ public class SenselInput {
 	private float minor;
 	private float orientation;
 	private boolean valid;
+	private long timestamp;
 
 	public enum Event {START, MOVE, END, INVALID}
 
+	/** Copies an event, so that the copy can be changed without changing the original. */
 	public SenselInput(SenselInput senselInput) {
-
+		contactID = senselInput.contactID;
+		event = senselInput.event;
+		coordinateX = senselInput.coordinateX;
+		coordinateY = senselInput.coordinateY;
+		force = senselInput.force;
+		major = senselInput.major;
+		minor = senselInput.minor;
+		orientation = senselInput.orientation;
+		valid = senselInput.valid;
+		timestamp = senselInput.timestamp;
 	}
 
 	public SenselInput(String s){
@@ -151,7 +162,12 @@ public class SenselInput {
 		return orientation;
 	}
 
-	public double getDistance(SenselInput other){
-		return Math.sqrt(Math.pow((coordinateX - other.coordinateX),2) + Math.pow((coordinateY - other.coordinateY), 2));
+	/** Time the event was received, in SystemClock.uptimeMillis() milliseconds. */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long t) {
+		timestamp = t;
 	}
 }
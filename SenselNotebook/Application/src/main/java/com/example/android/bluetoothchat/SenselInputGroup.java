@@ -20,7 +20,10 @@ public class SenselInputGroup {
     }
 
     public void addMessage(String s){
-        SenselInput newInput = new SenselInput(s);
+        add(new SenselInput(s));
+    }
+
+    public void add(SenselInput newInput){
         if(newInput.isValid() && !inputs.containsKey(newInput.getContactID())) {
             inputs.put(newInput.getContactID(), newInput);
         }
@@ -0,0 +1,131 @@
+package com.example.android.bluetoothchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.android.common.logger.TraceLog;
+
+/**
+ * Ends strokes whose END event never arrived, for instance because it was lost on the Bluetooth
+ * link.
+ *
+ * <p>Every START or MOVE of a contact re-arms that contact's deadline, and an END disarms it.
+ * The deadlines live in arrays indexed by {@link ContactSlots} slot, and a single callback on the
+ * main thread's Handler checks them: re-arming only stores a new deadline, so input costs no
+ * allocation and no thread. Because every deadline is the same timeout after the event that
+ * set it, a new deadline is never earlier than the one the callback is already posted for; when
+ * the callback finds that the contacts were re-armed in the meantime, it posts itself again
+ * for the earliest deadline left.</p>
+ *
+ * <p>All methods must be called on the main thread.</p>
+ */
+public class StrokeEndWatchdog {
+
+    /** Told, on the main thread, about a contact whose deadline passed. */
+    public interface Listener {
+        /**
+         * @param last The last event received for the contact. The watchdog no longer holds it.
+         */
+        void onStrokeEndMissed(SenselInput last);
+    }
+
+    private final long timeoutMillis;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ContactSlots slots = new ContactSlots();
+    // per slot: uptime at which the stroke is ended, and the event to end it with
+    private final long[] deadlines = new long[slots.capacity()];
+    private final SenselInput[] lastInputs = new SenselInput[slots.capacity()];
+    private boolean posted;
+    private long synthesizedEnds;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            posted = false;
+            expire(SystemClock.uptimeMillis());
+            schedule();
+        }
+    };
+
+    /**
+     * @param timeoutMillis How long a contact may go without events before its stroke is ended.
+     */
+    public StrokeEndWatchdog(long timeoutMillis, Listener listener) {
+        this.timeoutMillis = timeoutMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the deadline of the input's contact to the timeout from now. Contacts beyond the
+     * number of slots are not watched.
+     */
+    public void arm(SenselInput input) {
+        int slot = slots.acquire(input.getContactID());
+        if (slot < 0) {
+            return;
+        }
+        deadlines[slot] = SystemClock.uptimeMillis() + timeoutMillis;
+        lastInputs[slot] = input;
+        if (!posted) {
+            handler.postAtTime(check, deadlines[slot]);
+            posted = true;
+        }
+    }
+
+    /** Stops watching a contact, whose stroke ended normally. */
+    public void disarm(int contactId) {
+        int slot = slots.find(contactId);
+        if (slot >= 0) {
+            release(slot);
+        }
+    }
+
+    /** Stops watching every contact. */
+    public void cancel() {
+        handler.removeCallbacks(check);
+        posted = false;
+        for (int slot = 0; slot < slots.capacity(); slot++) {
+            lastInputs[slot] = null;
+        }
+        slots.clear();
+    }
+
+    /** Number of strokes the watchdog has ended. */
+    public long getSynthesizedEndCount() {
+        return synthesizedEnds;
+    }
+
+    private void expire(long now) {
+        for (int slot = 0; slot < slots.capacity(); slot++) {
+            if (slots.isUsed(slot) && deadlines[slot] <= now) {
+                SenselInput last = lastInputs[slot];
+                int contactId = slots.getContactId(slot);
+                release(slot);
+                synthesizedEnds++;
+                TraceLog.trace(TraceEvents.STROKE_END_MISSED, contactId, (int) synthesizedEnds);
+                listener.onStrokeEndMissed(last);
+            }
+        }
+    }
+
+    private void schedule() {
+        if (posted || slots.size() == 0) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+        for (int slot = 0; slot < slots.capacity(); slot++) {
+            if (slots.isUsed(slot)) {
+                next = Math.min(next, deadlines[slot]);
+            }
+        }
+        handler.postAtTime(check, next);
+        posted = true;
+    }
+
+    private void release(int slot) {
+        lastInputs[slot] = null;
+        slots.release(slot);
+    }
+}
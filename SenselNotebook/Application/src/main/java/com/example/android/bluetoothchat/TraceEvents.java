@@ -0,0 +1,39 @@
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.TraceLog;
+
+/**
+ * Events recorded in the app's {@link TraceLog}, covering the path from pad input to the screen
+ * and to storage.
+ */
+public final class TraceEvents {
+
+    /** Bluetooth read returned: bytes. */
+    public static final int BT_READ = 1;
+    /** UI thread took a read off its queue: bytes, milliseconds it waited in the queue. */
+    public static final int BT_DISPATCH = 2;
+    /** Pad contact handed to the canvas: contact id, event, pad x, pad y. */
+    public static final int INPUT = 3;
+    /** Gesture recognised: direction and finger count as enum ordinals, long press. */
+    public static final int GESTURE = 4;
+    /** Canvas drawn: microseconds, tiles rasterised, whether a page preview was drawn. */
+    public static final int DRAW = 5;
+    /** Page written by the saver thread: strokes, microseconds, bytes written. */
+    public static final int PAGE_SAVE = 6;
+    /** Stroke ended because its END never arrived: contact id, strokes ended that way so far. */
+    public static final int STROKE_END_MISSED = 7;
+
+    private TraceEvents() {
+    }
+
+    /** Names the events in a new trace. */
+    public static void define(TraceLog traceLog) {
+        traceLog.defineEvent(BT_READ, "bt_read", "i");
+        traceLog.defineEvent(BT_DISPATCH, "bt_dispatch", "ii");
+        traceLog.defineEvent(INPUT, "input", "iiff");
+        traceLog.defineEvent(GESTURE, "gesture", "iii");
+        traceLog.defineEvent(DRAW, "draw", "iii");
+        traceLog.defineEvent(PAGE_SAVE, "page_save", "iii");
+        traceLog.defineEvent(STROKE_END_MISSED, "stroke_end_missed", "ii");
+    }
+}
@@ -0,0 +1,285 @@
+package com.example.android.canvas;
+
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Central budget for bitmap memory.
+ *
+ * <p>Caches that hold bitmaps register here with a priority that says in which order they are
+ * given up, the cheapest to rebuild first. The budget covers all of them together, plus bitmaps that were
+ * released for reuse: {@link #get} hands out a released bitmap of the same size and config
+ * before it allocates, and when allocating would go over the budget it first trims the released
+ * bitmaps and then the caches, in priority order. The same trimming runs, to a fraction of the budget
+ * that depends on how severe the pressure is, when the system reports low memory.</p>
+ *
+ * <p>Bitmaps are never recycled here, only let go of: one dropped from a cache may still be
+ * referenced by a frame that is about to be drawn, and the garbage collector knows when it is
+ * not.</p>
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /** A cache whose bitmaps count against the budget. */
+    public interface Cache {
+        /** Bytes held now. */
+        int sizeBytes();
+
+        /** Drops least recently used entries until at most maxBytes are held. */
+        void trimToSize(int maxBytes);
+    }
+
+    private final int budgetBytes;
+    // released bitmaps by size and config, and all of them oldest first for trimming
+    private final HashMap<Long, ArrayList<Bitmap>> free = new HashMap<Long, ArrayList<Bitmap>>();
+    private final LinkedList<Bitmap> freeOrder = new LinkedList<Bitmap>();
+    private int freeBytes;
+    private final ArrayList<Cache> caches = new ArrayList<Cache>();
+    private final ArrayList<Integer> priorities = new ArrayList<Integer>();
+    // set while trimming, so that bitmaps the caches give up are not kept as released ones
+    private boolean trimming;
+    private int hits, misses;
+    private ComponentCallbacks callbacks;
+
+    /**
+     * @param budgetBytes Memory budget for all registered caches and released bitmaps.
+     */
+    public BitmapPool(int budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Adds a cache to the budget. Caches with a lower priority are trimmed first, and of those
+     * with the same priority the one added first.
+     */
+    public synchronized void addCache(Cache cache, int priority) {
+        int i = 0;
+        while (i < caches.size() && priorities.get(i) <= priority) {
+            i++;
+        }
+        caches.add(i, cache);
+        priorities.add(i, priority);
+    }
+
+    /**
+     * Returns a mutable, transparent bitmap, reusing a released one of the same size and config
+     * if there is one.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> matching = free.get(key(width, height, config));
+        if (matching != null && !matching.isEmpty()) {
+            Bitmap bitmap = matching.remove(matching.size() - 1);
+            freeOrder.remove(bitmap);
+            freeBytes -= bytesOf(bitmap);
+            bitmap.eraseColor(Color.TRANSPARENT);
+            hits++;
+            return bitmap;
+        }
+        misses++;
+        int needed = width * height * bytesPerPixel(config);
+        if (getUsedBytes() + needed > budgetBytes) {
+            trimTo(budgetBytes - needed);
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Takes back a bitmap that nothing draws from any more, keeping it for reuse if that fits
+     * the budget.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (trimming || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = bytesOf(bitmap);
+        if (getUsedBytes() + bytes > budgetBytes) {
+            return;
+        }
+        Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> matching = free.get(key);
+        if (matching == null) {
+            matching = new ArrayList<Bitmap>();
+            free.put(key, matching);
+        }
+        matching.add(bitmap);
+        freeOrder.add(bitmap);
+        freeBytes += bytes;
+    }
+
+    public int getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /** Bytes held by the registered caches and by released bitmaps. */
+    public synchronized int getUsedBytes() {
+        int used = freeBytes;
+        for (int i = 0; i < caches.size(); i++) {
+            used += caches.get(i).sizeBytes();
+        }
+        return used;
+    }
+
+    /** Bytes held by released bitmaps waiting for reuse. */
+    public synchronized int getFreeBytes() {
+        return freeBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder("BitmapPool[budget=").append(budgetBytes)
+                .append(", free=").append(freeBytes);
+        for (int i = 0; i < caches.size(); i++) {
+            out.append(", cache").append(i).append('=').append(caches.get(i).sizeBytes());
+        }
+        return out.append(", hits=").append(hits).append(", misses=").append(misses)
+                .append(']').toString();
+    }
+
+    /**
+     * Frees memory until at most maxBytes are used: released bitmaps go first, then the caches
+     * in priority order.
+     */
+    public synchronized void trimTo(int maxBytes) {
+        if (trimming) {
+            return;
+        }
+        maxBytes = Math.max(0, maxBytes);
+        Iterator<Bitmap> oldest = freeOrder.iterator();
+        int used = getUsedBytes();
+        while (used > maxBytes && oldest.hasNext()) {
+            Bitmap bitmap = oldest.next();
+            oldest.remove();
+            free.get(key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .remove(bitmap);
+            int bytes = bytesOf(bitmap);
+            freeBytes -= bytes;
+            used -= bytes;
+        }
+        trimming = true;
+        try {
+            for (int i = 0; i < caches.size() && used > maxBytes; i++) {
+                Cache cache = caches.get(i);
+                int size = cache.sizeBytes();
+                cache.trimToSize(Math.max(0, size - (used - maxBytes)));
+                used -= size - cache.sizeBytes();
+            }
+        } finally {
+            trimming = false;
+        }
+    }
+
+    /**
+     * Trims in response to {@link ComponentCallbacks2#onTrimMemory}: the worse the pressure,
+     * the smaller the part of the budget that is kept. Once the app is in the background
+     * everything goes.
+     */
+    public void trimMemory(int level) {
+        int keep;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            keep = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // also covers TRIM_MEMORY_UI_HIDDEN: keep enough to come back to the page quickly
+            keep = budgetBytes / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            keep = budgetBytes / 2;
+        } else {
+            keep = budgetBytes * 3 / 4;
+        }
+        trimTo(keep);
+        Log.i(TAG, "trim level " + level + ": " + this);
+    }
+
+    /**
+     * Starts listening for memory pressure on the application context. Before API 14 there is
+     * no way to register; there the owner of the pool forwards onLowMemory() to
+     * {@link #trimTo}, and the budget is still enforced on every allocation.
+     */
+    public void register(Context context) {
+        if (Build.VERSION.SDK_INT >= 14 && callbacks == null) { // Ice Cream Sandwich
+            callbacks = new TrimCallbacks(this);
+            context.getApplicationContext().registerComponentCallbacks(callbacks);
+        }
+    }
+
+    /** Stops listening, so that the application context does not keep the pool alive. */
+    public void unregister(Context context) {
+        if (callbacks != null) {
+            context.getApplicationContext().unregisterComponentCallbacks(callbacks);
+            callbacks = null;
+        }
+    }
+
+    /** Only loaded from API 14, where ComponentCallbacks2 exists. */
+    private static class TrimCallbacks implements ComponentCallbacks2 {
+        private final BitmapPool pool;
+
+        TrimCallbacks(BitmapPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            pool.trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            pool.trimTo(0);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+
+    /**
+     * Trims an LruCache whose sizes are in bytes, dropping least recently used entries first.
+     * For {@link Cache} implementations, since LruCache only trims to its own maximum size.
+     */
+    public static <K, V> void trim(LruCache<K, V> cache, int maxBytes) {
+        if (maxBytes <= 0) {
+            cache.evictAll();
+            return;
+        }
+        // the snapshot lists entries from least to most recently used
+        for (Map.Entry<K, V> entry : cache.snapshot().entrySet()) {
+            if (cache.size() <= maxBytes) {
+                break;
+            }
+            cache.remove(entry.getKey());
+        }
+    }
+
+    private static int bytesOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    private static Long key(int width, int height, Bitmap.Config config) {
+        return ((long) config.ordinal() << 48) | ((long) width << 24) | height;
+    }
+}
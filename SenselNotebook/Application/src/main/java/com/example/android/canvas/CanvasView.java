@@ -6,46 +6,101 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Environment;
 import android.util.AttributeSet;
-import android.util.Log;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.widget.Toast;
 
+import com.example.android.bluetoothchat.ContactSlots;
 import com.example.android.bluetoothchat.SenselInput;
+import com.example.android.bluetoothchat.TraceEvents;
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.TraceLog;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
 
 /**
  * Created by Gerry on 2015/9/26.
  */
 public class CanvasView extends View {
 
-    // drawing path
-    private Path drawPath;
-    // drawing point
-    private boolean drawPoint;
+    // strokes being drawn, one per pad contact, in arrays indexed by the contact's slot: the
+    // path shown while drawing, the stroke it becomes, whether it is still a single point, its
+    // last point on the page, where the path shown ends so far (the path trails the last point
+    // by half a segment), the pad position of its last event and when the stroke started
+    private final ContactSlots contacts = new ContactSlots();
+    private final Path[] drawPaths = new Path[contacts.capacity()];
+    private final Stroke[] drawStrokes = new Stroke[contacts.capacity()];
+    private final boolean[] drawPoints = new boolean[contacts.capacity()];
+    private final float[] lastX = new float[contacts.capacity()];
+    private final float[] lastY = new float[contacts.capacity()];
+    private final float[] endX = new float[contacts.capacity()];
+    private final float[] endY = new float[contacts.capacity()];
+    private final float[] lastPadX = new float[contacts.capacity()];
+    private final float[] lastPadY = new float[contacts.capacity()];
+    private final long[] startTimes = new long[contacts.capacity()];
+    // strokes most recently added to the page, newest last, with the contact that drew them,
+    // so that the strokes of a gesture's fingers can be found again once it is recognised
+    private final ArrayDeque<ContactStroke> recentStrokes = new ArrayDeque<ContactStroke>();
+    // pad positions smoothed per contact, by slot, before they become ink, with the smoothing
+    // for a pen STROKE_WIDTH pixels wide
+    private final OneEuroFilter smoothing = new OneEuroFilter(contacts.capacity());
+    private float smoothingMinCutoff = SMOOTHING_MIN_CUTOFF;
+    private float smoothingBeta = SMOOTHING_BETA;
+    // on-screen width of new strokes, in pixels
+    private float penWidth = STROKE_WIDTH;
+    // guessed pen positions, by slot, and the provisional ink drawn out to them on the page,
+    // with the area that ink covers
+    private final MotionPredictor predictor = new MotionPredictor(contacts.capacity());
+    private final boolean[] hasTail = new boolean[contacts.capacity()];
+    private final Path[] tailPaths = new Path[contacts.capacity()];
+    private final RectF[] tailBounds = new RectF[contacts.capacity()];
     // drawing and canvas paint
     public Paint drawPaint;
-    public Paint tempPaint;
     private Paint canvasPaint;
     // initial color
     private int paintColor = Color.BLACK;
-    // canvas
-    private Canvas drawCanvas;
-    // canvas bitmap
-    private Bitmap canvasBitmap;
-
-    private ArrayList<Path> paths = new ArrayList<Path>();
-    private ArrayList<Integer> pathscolor = new ArrayList<Integer>();
-    private ArrayList<Integer> pointcolor = new ArrayList<Integer>();
-    private ArrayList<Integer> marker = new ArrayList<Integer>();
-    private ArrayList<Point> points = new ArrayList<Point>();
+    // one memory budget for every bitmap cache below, trimmed under memory pressure
+    private BitmapPool bitmapPool = newBitmapPool();
+    // pan/zoom window onto the page, and prerendered ink tiles for it
+    private Viewport viewport = new Viewport();
+    private TileCache tileCache = newTileCache(bitmapPool);
+    private Canvas tileCanvas = new Canvas();
+    // shared placeholder for tiles with no ink, so blank areas cost no tile memory
+    private Bitmap emptyTile = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+    private RectF tileDst = new RectF();
+    private ScaleGestureDetector scaleDetector;
+    private GestureDetector panDetector;
+    // sensor-to-screen mapping: the pad covers the view, keeping its aspect ratio
+    private float padScale, padOffsetX, padOffsetY;
+
+    // the notebook, the page shown from it, and the undo/redo log that edits that page
+    private Notebook notebook;
+    private int pageIndex = -1;
+    private Page page = new Page();
+    private History history = new History(page, MAX_HISTORY, MAX_HISTORY_BYTES);
+    // version the page had when it was turned to, to tell whether leaving it needs a save
+    private long openedVersion;
+    // prerendered image of the page shown instead of tiles until the page or viewport changes
+    private Notebook.RenderedPage preview;
+    private ThumbnailService thumbnails;
+    // scratch state for drawing, reused to avoid per-frame allocation
+    private StrokeRenderer strokeRenderer = new StrokeRenderer();
+    private Rect clipBounds = new Rect();
+    private ArrayList<Stroke> tileStrokes = new ArrayList<Stroke>();
+    // tiles that missed the cache during the current draw, for the trace
+    private int tilesRasterised;
     private Context context;
 
     public int width;
@@ -53,32 +108,270 @@ public class CanvasView extends View {
     private static final String TAG = "CanvasView";
 
     private int fileNumber;
+    private File pageFile;
+    private PageSaver pageSaver = new PageSaver();
+    private StrokeJournal journal;
+    private boolean attached;
+    // version of the newest save of each page that was turned away from
+    private HashMap<Integer, Long> leftVersions = new HashMap<Integer, Long>();
 
-    private float mX, mY;
     private final float TOUCH_TOLERANCE = 1;
+    // a contact that moves further than this on the pad, in mm, between two events was lifted
+    // and put down again without an END and START in between
+    private static final float JUMP_DISTANCE = 20;
+    // smoothing of pad positions for a pen STROKE_WIDTH wide: cutoff in Hz while still, and
+    // its rise in Hz per mm/s, so that a stroke at 200mm/s is smoothed at over 10Hz
+    private static final float SMOOTHING_MIN_CUTOFF = 1.5f;
+    private static final float SMOOTHING_BETA = 0.05f;
+    private static final float STROKE_WIDTH = 20;
+    private static final int MAX_HISTORY = 500;
+    private static final int MAX_HISTORY_BYTES = 4 * 1024 * 1024;
+    private static final float MIN_ZOOM = 0.125f;
+    private static final float MAX_ZOOM = 8;
+    // fsync the journal after this many strokes or this long, whichever comes first
+    private static final int JOURNAL_SYNC_RECORDS = 8;
+    private static final long JOURNAL_SYNC_MILLIS = 500;
+    // memory budget for rendered page images, as a fraction of the heap
+    private static final int RENDERED_PAGES_HEAP_FRACTION = 16;
+    private static final int THUMBNAIL_WIDTH = 120;
+    private static final int THUMBNAILS_HEAP_FRACTION = 32;
+    // memory budget for all bitmaps, and the share of it for tiles, as fractions of the heap
+    private static final int BITMAP_BUDGET_HEAP_FRACTION = 4;
+    private static final int TILES_HEAP_FRACTION = 8;
+    // order in which caches give up memory: the cheapest to rebuild first
+    private static final int TRIM_THUMBNAILS = 0;
+    private static final int TRIM_RENDERED_PAGES = 1;
+    private static final int TRIM_TILES = 2;
+    // pages loaded at once while exporting, per worker thread
+    private static final int EXPORT_PAGES_PER_THREAD = 2;
 
     public CanvasView(Context context, AttributeSet attrs) {
         super(context, attrs);
         this.context = context;
         setupDrawing();
-        setDrawingCacheEnabled(true);
+        setupZoom(context);
+        page.setPenColor(getPaintColor());
         // TODO Auto-generated constructor stub
 
         fileNumber=0;
+        // the notebook is opened once the view is attached, unless restoreState() hands over
+        // one that is already open
+    }
+
+    /**
+     * Everything the view edits and caches, kept apart from the view so that it can outlive it:
+     * the notebook and the page open in it with its undo history, journal and pending saves,
+     * the viewport, and the rendered tiles with their memory budget. A retained fragment holds
+     * it across configuration changes, so a rotated view picks up where the old one stopped
+     * instead of loading and rasterising the page again.
+     */
+    public static final class State {
+        private Notebook notebook;
+        private int pageIndex;
+        private Page page;
+        private History history;
+        private long openedVersion;
+        private Notebook.RenderedPage preview;
+        private StrokeJournal journal;
+        private PageSaver pageSaver;
+        private HashMap<Integer, Long> leftVersions;
+        private ThumbnailService thumbnails;
+        private BitmapPool bitmapPool;
+        private Viewport viewport;
+        private TileCache tileCache;
+        private Bitmap emptyTile;
+        private int width, height;
+        private int fileNumber;
+        private int colorIndex;
+        private float penWidth;
+
+        private State() {
+        }
+    }
+
+    /**
+     * Hands the view's state over for a view that will replace this one, typically from
+     * {@link android.support.v4.app.Fragment#onDestroyView()}. This view must not be used
+     * afterwards. Returns null if the view never opened a page.
+     */
+    public State retainState() {
+        if (notebook == null) {
+            return null;
+        }
+        // strokes being drawn are dropped: the pen cannot stay down across the change
+        dropStrokes();
+        page.removeListener(pageListener);
+        State state = new State();
+        state.notebook = notebook;
+        state.pageIndex = pageIndex;
+        state.page = page;
+        state.history = history;
+        state.openedVersion = openedVersion;
+        state.preview = preview;
+        state.journal = journal;
+        state.pageSaver = pageSaver;
+        state.leftVersions = leftVersions;
+        state.thumbnails = thumbnails;
+        state.bitmapPool = bitmapPool;
+        state.viewport = viewport;
+        state.tileCache = tileCache;
+        state.emptyTile = emptyTile;
+        state.width = width;
+        state.height = height;
+        state.fileNumber = fileNumber;
+        state.colorIndex = color_index;
+        state.penWidth = penWidth;
+        return state;
+    }
+
+    /**
+     * Takes over the state a previous view handed over with {@link #retainState()}. Must be
+     * called before the view is attached. The page is not loaded again, and the cached tiles
+     * stay valid because they do not depend on the view size; if the size is unchanged the
+     * viewport is kept as well.
+     */
+    public void restoreState(State state) {
+        notebook = state.notebook;
+        pageIndex = state.pageIndex;
+        pageFile = notebook.getPageFile(pageIndex);
+        page = state.page;
+        history = state.history;
+        openedVersion = state.openedVersion;
+        preview = state.preview;
+        journal = state.journal;
+        pageSaver = state.pageSaver;
+        leftVersions = state.leftVersions;
+        thumbnails = state.thumbnails;
+        bitmapPool = state.bitmapPool;
+        viewport = state.viewport;
+        tileCache = state.tileCache;
+        emptyTile = state.emptyTile;
+        width = state.width;
+        height = state.height;
+        fileNumber = state.fileNumber;
+        color_index = state.colorIndex;
+        penWidth = state.penWidth;
+        drawPaint.setColor(page.getPenColor());
+        page.addListener(pageListener);
+    }
+
+    private static BitmapPool newBitmapPool() {
+        return new BitmapPool((int) (Runtime.getRuntime().maxMemory() / BITMAP_BUDGET_HEAP_FRACTION));
+    }
+
+    private static TileCache newTileCache(BitmapPool pool) {
+        TileCache cache = new TileCache(
+                (int) (Runtime.getRuntime().maxMemory() / TILES_HEAP_FRACTION), pool);
+        pool.addCache(cache, TRIM_TILES);
+        return cache;
+    }
+
+    /** The budget every bitmap the view caches counts against, with its current usage. */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    public int getPageCount() {
+        return notebook.getPageCount();
+    }
+
+    /** Thumbnails of the notebook's pages, for an overview. */
+    public ThumbnailService getThumbnails() {
+        if (thumbnails == null) {
+            thumbnails = new ThumbnailService(notebook,
+                    new File(context.getCacheDir(), "thumbnails"), THUMBNAIL_WIDTH,
+                    (int) (Runtime.getRuntime().maxMemory() / THUMBNAILS_HEAP_FRACTION));
+            bitmapPool.addCache(thumbnails.getMemoryCache(), TRIM_THUMBNAILS);
+        }
+        return thumbnails;
+    }
+
+    /**
+     * Turns to page index of the notebook, adding a blank page when turning past the last one.
+     * The page being left is saved in the background if it changed, and kept in memory along
+     * with an image of it while it is a neighbour of the page shown.
+     */
+    public void turnToPage(int index) {
+        if (index < 0 || index == pageIndex) {
+            return;
+        }
+        Page left = page;
+        int leftIndex = pageIndex;
+        dropStrokes();
+        if (left.getVersion() != openedVersion) {
+            savePage(left, leftIndex);
+        }
+        showPage(index);
+        notebook.prefetchAround(index, leftIndex, left, width, height, viewport);
+    }
+
+    /**
+     * Binds the view to page index. Unless the page was prefetched, only the header and stroke
+     * index of its file are read here; each stroke decodes its points from the mapped file
+     * when it is first drawn.
+     */
+    private void showPage(int index) {
+        if (attached) {
+            journal.close();
+        }
+        page.removeListener(pageListener);
+        int color = page.getPenColor();
+
+        pageIndex = index;
+        // the page is journalled again, so a save still pending from leaving it earlier must
+        // not delete its journal; this also holds for saves started by a view since replaced
+        leftVersions.remove(index);
+        pageFile = notebook.getPageFile(index);
+        page = notebook.open(index);
+        page.setPenColor(color);
+        history = new History(page, MAX_HISTORY, MAX_HISTORY_BYTES);
+        journal = new StrokeJournal(notebook.getJournalFile(index),
+                JOURNAL_SYNC_RECORDS, JOURNAL_SYNC_MILLIS);
+        // the notebook has already applied the journal and found where it ends
+        journal.setValidLength(notebook.getJournalLength());
+        openedVersion = page.getVersion();
+        page.addListener(pageListener);
+        if (attached) {
+            journal.open(page);
+        }
+        tileCache.clear();
+        preview = notebook.getRendered(index);
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (notebook == null) {
+            notebook = new Notebook(new File(context.getFilesDir(), "notebook"),
+                    (int) (Runtime.getRuntime().maxMemory() / RENDERED_PAGES_HEAP_FRACTION));
+            bitmapPool.addCache(notebook.getRenderedCache(), TRIM_RENDERED_PAGES);
+            showPage(0);
+        }
+        bitmapPool.register(context);
+        attached = true;
+        journal.open(page);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        attached = false;
+        journal.close();
+        bitmapPool.unregister(context);
+        super.onDetachedFromWindow();
     }
 
     private void setupDrawing() {
         // get drawing area setup for interaction
 
-        drawPath = new Path();
-        drawPaint = new Paint();
+        drawPaint = StrokeRenderer.newInkPaint();
         // drawPaint.setColor(paintColor);
-        drawPaint.setAntiAlias(true);
-        drawPaint.setStrokeWidth(20);
-        drawPaint.setStyle(Paint.Style.STROKE);
-        drawPaint.setStrokeJoin(Paint.Join.ROUND);
-        drawPaint.setStrokeCap(Paint.Cap.ROUND);
-        canvasPaint = new Paint(Paint.DITHER_FLAG);
+        drawPaint.setStrokeWidth(STROKE_WIDTH);
+        canvasPaint = new Paint(Paint.DITHER_FLAG | Paint.FILTER_BITMAP_FLAG);
         color_list = new ArrayList<>();
         color_list.add(Color.BLACK);
         color_list.add(Color.RED);
@@ -87,6 +380,27 @@ public class CanvasView extends View {
         color_index = 0;
     }
 
+    private void setupZoom(Context context) {
+        scaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        viewport.zoomBy(detector.getScaleFactor(),
+                                detector.getFocusX(), detector.getFocusY());
+                        invalidate();
+                        return true;
+                    }
+                });
+        panDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                viewport.panBy(distanceX, distanceY);
+                invalidate();
+                return true;
+            }
+        });
+    }
+
     private ArrayList<Integer> color_list;
     private int color_index = 0;
 
@@ -96,13 +410,28 @@ public class CanvasView extends View {
 //                .show();
         Log.v(TAG, "change color");
         color_index++;
-        drawPaint.setColor(color_list.get(color_index % color_list.size()));
+        setPenColor(color_list.get(color_index % color_list.size()));
     }
 
     public int getPaintColor() {
         return color_list.get(color_index % color_list.size());
     }
 
+    private void setPenColor(int color) {
+        history.perform(new History.ChangeColor(page.getPenColor(), color));
+        drawPaint.setColor(color);
+    }
+
+    /** Picks up the pen colour from the page after undo or redo changed it. */
+    private void syncPenColor() {
+        int color = page.getPenColor();
+        drawPaint.setColor(color);
+        int index = color_list.indexOf(color);
+        if (index >= 0) {
+            color_index = index;
+        }
+    }
+
     public void changeColorDown() {
 //        Toast.makeText(context,
 //                "Color Changed", Toast.LENGTH_LONG)
@@ -112,169 +441,602 @@ public class CanvasView extends View {
             color_index = color_list.size();
         else
             color_index--;
-        drawPaint.setColor(color_list.get(color_index % color_list.size()));
+        setPenColor(color_list.get(color_index % color_list.size()));
     }
 
-    private Paint setUpPaint(int color) {
-        tempPaint = new Paint();
-        tempPaint.setColor(color);
-        tempPaint.setAntiAlias(true);
-        tempPaint.setStrokeWidth(20);
+    /**
+     * Returns the tile from the cache, rasterising it from the strokes that intersect it if it
+     * is not cached yet.
+     */
+    private Bitmap getTile(int level, int tx, int ty) {
+        Bitmap tile = tileCache.get(level, tx, ty);
+        if (tile != null) {
+            return tile;
+        }
+        float extent = TileCache.tileExtent(level);
+        float left = tx * extent, top = ty * extent;
+        tileStrokes.clear();
+        page.query(left, top, left + extent, top + extent, tileStrokes);
+        tilesRasterised++;
+        if (tileStrokes.isEmpty()) {
+            tile = emptyTile;
+        } else {
+            tile = bitmapPool.get(TileCache.TILE_SIZE, TileCache.TILE_SIZE,
+                    Bitmap.Config.ARGB_8888);
+            beginTile(tile, level, left, top);
+            float levelScale = TileCache.levelScale(level);
+            for (int i = 0; i < tileStrokes.size(); i++) {
+                strokeRenderer.draw(tileCanvas, tileStrokes.get(i), levelScale);
+            }
+        }
+        tileCache.put(level, tx, ty, tile);
+        return tile;
+    }
+
+    private void beginTile(Bitmap tile, int level, float left, float top) {
+        float levelScale = TileCache.levelScale(level);
+        tileCanvas.setBitmap(tile);
+        tileCanvas.setMatrix(null);
+        tileCanvas.scale(levelScale, levelScale);
+        tileCanvas.translate(-left, -top);
+    }
+
+    /**
+     * Paints a newly committed stroke on top of every cached tile it touches, so adding ink
+     * never forces a tile to be rasterised again.
+     */
+    private void drawIntoCachedTiles(Stroke stroke) {
+        for (int level = TileCache.MIN_LEVEL; level <= TileCache.MAX_LEVEL; level++) {
+            if (!tileCache.hasLevel(level)) {
+                continue;
+            }
+            float extent = TileCache.tileExtent(level);
+            int tx1 = (int) Math.floor(stroke.getRight() / extent);
+            int ty1 = (int) Math.floor(stroke.getBottom() / extent);
+            for (int tx = (int) Math.floor(stroke.getLeft() / extent); tx <= tx1; tx++) {
+                for (int ty = (int) Math.floor(stroke.getTop() / extent); ty <= ty1; ty++) {
+                    Bitmap tile = tileCache.get(level, tx, ty);
+                    if (tile == emptyTile) {
+                        tileCache.remove(level, tx, ty);
+                    } else if (tile != null) {
+                        beginTile(tile, level, tx * extent, ty * extent);
+                        strokeRenderer.draw(tileCanvas, stroke, TileCache.levelScale(level));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the topmost committed stroke under (x, y), or null. This is what selection and
+     * erasing build on.
+     */
+    public Stroke strokeAt(float x, float y, float tolerance) {
+        return page.hitTest(x, y, tolerance);
+    }
 
-        tempPaint.setStyle(Paint.Style.STROKE);
-        tempPaint.setStrokeJoin(Paint.Join.ROUND);
-        tempPaint.setStrokeCap(Paint.Cap.ROUND);
-        return tempPaint;
+    /**
+     * Returns the committed strokes whose bounds intersect the given rectangle, oldest first.
+     */
+    public ArrayList<Stroke> strokesIn(float left, float top, float right, float bottom) {
+        ArrayList<Stroke> result = new ArrayList<Stroke>();
+        page.query(left, top, right, bottom, result);
+        return result;
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         // TODO Auto-generated method stub
         super.onSizeChanged(w, h, oldw, oldh);
+        // a restored view that comes back at the size the state was laid out for keeps its
+        // viewport; otherwise the pad is fitted to the new size
+        boolean resized = w != width || h != height;
         width = w;
         height = h;
-        canvasBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        drawCanvas = new Canvas(canvasBitmap);
+        padScale = Math.min(w / SenselPad.WIDTH, h / SenselPad.HEIGHT);
+        padOffsetX = (w - SenselPad.WIDTH * padScale) / 2;
+        padOffsetY = (h - SenselPad.HEIGHT * padScale) / 2;
+        viewport.setScaleLimits(padScale * MIN_ZOOM, padScale * MAX_ZOOM);
+        if (oldw == 0 && oldh == 0 && resized) {
+            // start with the whole pad area in view; tiles are cached per zoom level, so a
+            // later size change keeps both the viewport and the cache
+            viewport.set(padScale, -padOffsetX / padScale, -padOffsetY / padScale);
+            notebook.prefetchAround(pageIndex, -1, null, w, h, viewport);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        panDetector.onTouchEvent(event);
+        return true;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         // TODO Auto-generated method stub
-        if (marker.size() > 0) {
-
-            for (int i = 0; i < paths.size(); i++) {
-
-                canvas.drawPath(paths.get(i), setUpPaint(pathscolor.get(i)));
+        // only tiles that intersect the area being redrawn are touched
+        if (!canvas.getClipBounds(clipBounds)) {
+            return;
+        }
+        long start = System.nanoTime();
+        tilesRasterised = 0;
+        float scale = viewport.getScale();
+        if (preview != null && !preview.matches(page, viewport)) {
+            preview = null;
+        }
+        if (preview != null) {
+            // just turned to a prefetched page: one bitmap instead of rasterising every tile
+            canvas.drawBitmap(preview.bitmap, 0, 0, canvasPaint);
+        } else {
+            drawTiles(canvas, scale);
+        }
+        if (contacts.size() > 0) {
+            canvas.save();
+            canvas.scale(scale, scale);
+            canvas.translate(-viewport.getOriginX(), -viewport.getOriginY());
+            for (int slot = 0; slot < drawStrokes.length; slot++) {
+                if (drawStrokes[slot] != null) {
+                    drawPaint.setStrokeWidth(drawStrokes[slot].getWidth());
+                    canvas.drawPath(drawPaths[slot], drawPaint);
+                    if (hasTail[slot]) {
+                        // provisional: replaced as soon as the next sample arrives
+                        canvas.drawPath(tailPaths[slot], drawPaint);
+                    }
+                }
             }
+            canvas.restore();
+        }
+        TraceLog.trace(TraceEvents.DRAW, (int) ((System.nanoTime() - start) / 1000),
+                tilesRasterised, preview != null ? 1 : 0, 0);
+    }
 
-            for (int i = 0; i < points.size(); i++) {
-                canvas.drawPoint(points.get(i).x, points.get(i).y,
-                        setUpPaint(pointcolor.get(i)));
+    private void drawTiles(Canvas canvas, float scale) {
+        int level = TileCache.levelFor(scale);
+        float extent = TileCache.tileExtent(level);
+        int tx0 = (int) Math.floor(viewport.toPageX(clipBounds.left) / extent);
+        int tx1 = (int) Math.floor(viewport.toPageX(clipBounds.right) / extent);
+        int ty0 = (int) Math.floor(viewport.toPageY(clipBounds.top) / extent);
+        int ty1 = (int) Math.floor(viewport.toPageY(clipBounds.bottom) / extent);
+        for (int tx = tx0; tx <= tx1; tx++) {
+            for (int ty = ty0; ty <= ty1; ty++) {
+                tileDst.set(viewport.toScreenX(tx * extent), viewport.toScreenY(ty * extent),
+                        viewport.toScreenX((tx + 1) * extent), viewport.toScreenY((ty + 1) * extent));
+                Bitmap tile = getTile(level, tx, ty);
+                if (tile != emptyTile) {
+                    canvas.drawBitmap(tile, null, tileDst, canvasPaint);
+                }
             }
         }
-        canvas.drawPath(drawPath, drawPaint);
     }
 
 
     public boolean onSenselEvent(SenselInput event) {
-        if(event.getForce() < 500 && !SenselInput.Event.END.equals(event.getEvent()) )
-            return false;
+        // light touches and palms were already dropped by the ContactFilter
+        SenselInput.Event type = event.getEvent();
+        TraceLog.trace(TraceEvents.INPUT, event.getContactID(), type == null ? -1 : type.ordinal(),
+                event.getX(), event.getY());
+        Log.v(TAG, "event x = {}, event y = {}", event.getX(), event.getY());
 
-        Log.v(TAG, "event x = " + event.getX() + ", event y = " + event.getY());
-
-        float x = event.getY()*width/120;
-        float y = height - event.getX() * height / 230;
-        Log.v(TAG, "x = " + x + ", y = " + y);
 //        drawPaint.setStrokeWidth(event.getForce()/1000);
 
-        if(SenselInput.Event.START.equals(event.getEvent())) {
-            touch_start(x, y);
+        int slot = contacts.acquire(event.getContactID());
+        if (slot < 0) {
+            // more contacts on the pad than strokes can be drawn at once
+            return false;
+        }
+        if (SenselInput.Event.START.equals(type)) {
+            touch_up(slot);
+            // the pen has a constant on-screen width, so its width in page units depends on zoom
+            float width = penWidth / viewport.getScale();
+            startSmoothing(slot, event, width);
+            touch_start(slot, smoothedPageX(slot), smoothedPageY(slot), width,
+                    event.getTimestamp());
+            predictor.start(slot, smoothing.getX(slot), smoothing.getY(slot),
+                    event.getTimestamp());
         }
-        else if (SenselInput.Event.MOVE.equals(event.getEvent())) {
-            touch_move(x, y);
+        else if (SenselInput.Event.MOVE.equals(type)) {
+            if (drawStrokes[slot] == null) {
+                // the stroke was ended or discarded; the contact draws again after a START
+                contacts.release(slot);
+                return false;
+            }
+            float jumpX = event.getX() - lastPadX[slot];
+            float jumpY = event.getY() - lastPadY[slot];
+            if (jumpX * jumpX + jumpY * jumpY > JUMP_DISTANCE * JUMP_DISTANCE) {
+                // the END and START in between were lost: end the stroke, start a new one as
+                // wide here
+                float width = drawStrokes[slot].getWidth();
+                touch_up(slot);
+                startSmoothing(slot, event, width);
+                touch_start(slot, smoothedPageX(slot), smoothedPageY(slot), width,
+                        event.getTimestamp());
+                predictor.start(slot, smoothing.getX(slot), smoothing.getY(slot),
+                        event.getTimestamp());
+            } else {
+                smoothing.filter(slot, event.getX(), event.getY(), event.getTimestamp());
+                touch_move(slot, smoothedPageX(slot), smoothedPageY(slot));
+                predictor.add(slot, smoothing.getX(slot), smoothing.getY(slot),
+                        event.getTimestamp());
+                updateTail(slot);
+            }
         }
-        else if (SenselInput.Event.END.equals(event.getEvent())) {
-            touch_up();
+        else if (SenselInput.Event.END.equals(type)) {
+            touch_up(slot);
+            contacts.release(slot);
+            return true;
         }
         else {
+            if (drawStrokes[slot] == null) {
+                contacts.release(slot);
+            }
             return false;
         }
-        invalidate();
+        lastPadX[slot] = event.getX();
+        lastPadY[slot] = event.getY();
         return true;
     }
 
+    /** Sets the on-screen width of the strokes drawn from now on, in pixels. */
+    public void setPenWidth(float pixels) {
+        penWidth = pixels;
+    }
+
+    public float getPenWidth() {
+        return penWidth;
+    }
+
+    /**
+     * Sets how much pad positions are smoothed before they become ink, for a pen
+     * {@link #STROKE_WIDTH} pixels wide; see {@link OneEuroFilter#start}. Jitter shows the most
+     * on thin lines, so thinner pens get proportionally more smoothing and wider ones less.
+     *
+     * @param minCutoff Cutoff in Hz while the pen is still.
+     * @param beta Rise of the cutoff in Hz per mm/s of pen speed.
+     */
+    public void setPenSmoothing(float minCutoff, float beta) {
+        smoothingMinCutoff = minCutoff;
+        smoothingBeta = beta;
+    }
+
+    /**
+     * Starts smoothing the positions of a contact drawing a stroke width page units wide, with
+     * the smoothing set for its width on screen.
+     */
+    private void startSmoothing(int slot, SenselInput event, float width) {
+        float screenWidth = width * viewport.getScale();
+        smoothing.start(slot, smoothingMinCutoff * screenWidth / STROKE_WIDTH, smoothingBeta,
+                event.getX(), event.getY(), event.getTimestamp());
+    }
+
+    private float smoothedPageX(int slot) {
+        return padToPageX(smoothing.getY(slot));
+    }
+
+    private float smoothedPageY(int slot) {
+        return padToPageY(smoothing.getX(slot));
+    }
+
+    // the pad maps onto the view; the view maps onto the page through the viewport
+    private float padToPageX(float padY) {
+        return viewport.toPageX(padOffsetX + padY * padScale);
+    }
+
+    private float padToPageY(float padX) {
+        return viewport.toPageY(padOffsetY + (SenselPad.HEIGHT - padX) * padScale);
+    }
+
+    /**
+     * Sets how far ahead of the latest sample provisional ink is drawn, to make up for the
+     * time a sample takes to reach the screen. 0 turns it off.
+     */
+    public void setPredictionHorizon(long millis) {
+        predictor.setHorizon(millis);
+    }
+
+    /** The predictor of pen positions, for its error statistics. */
+    public MotionPredictor getMotionPredictor() {
+        return predictor;
+    }
+
+    /**
+     * Moves a contact's provisional ink out to its newest guessed position. It carries on from
+     * where the path shown ends, through the last point, as the next segment of the path would.
+     */
+    private void updateTail(int slot) {
+        clearTail(slot);
+        if (predictor.hasPrediction(slot)) {
+            float tailX = padToPageX(predictor.getY(slot));
+            float tailY = padToPageY(predictor.getX(slot));
+            if (tailPaths[slot] == null) {
+                tailPaths[slot] = new Path();
+                tailBounds[slot] = new RectF();
+            }
+            Path tail = tailPaths[slot];
+            tail.reset();
+            tail.moveTo(endX[slot], endY[slot]);
+            tail.quadTo(lastX[slot], lastY[slot], tailX, tailY);
+            // the curve stays inside the triangle of its three points
+            float pad = drawStrokes[slot].getWidth() / 2;
+            RectF bounds = tailBounds[slot];
+            bounds.set(Math.min(endX[slot], Math.min(lastX[slot], tailX)) - pad,
+                    Math.min(endY[slot], Math.min(lastY[slot], tailY)) - pad,
+                    Math.max(endX[slot], Math.max(lastX[slot], tailX)) + pad,
+                    Math.max(endY[slot], Math.max(lastY[slot], tailY)) + pad);
+            hasTail[slot] = true;
+            invalidatePage(bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+    }
+
+    private void clearTail(int slot) {
+        if (hasTail[slot]) {
+            hasTail[slot] = false;
+            RectF bounds = tailBounds[slot];
+            invalidatePage(bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+    }
+
+    /**
+     * Throws away the strokes that the given contacts drew from since onwards, while making a
+     * gesture: the strokes they are still drawing, and those they finished, as long as no other
+     * kind of edit was made after them. Thrown away strokes cannot be redone. Returns the number
+     * of strokes thrown away.
+     */
+    public int discardStrokes(Set<Integer> contactIds, long since) {
+        int discarded = 0;
+        for (int slot = 0; slot < drawStrokes.length; slot++) {
+            if (drawStrokes[slot] != null && contactIds.contains(contacts.getContactId(slot))
+                    && startTimes[slot] >= since) {
+                clearTail(slot);
+                invalidateStroke(slot);
+                drawStrokes[slot] = null;
+                discarded++;
+            }
+        }
+        for (Iterator<ContactStroke> it = recentStrokes.iterator(); it.hasNext(); ) {
+            ContactStroke recent = it.next();
+            if (contactIds.contains(recent.contactId) && recent.startTime >= since) {
+                it.remove();
+                if (history.discardStroke(recent.stroke)) {
+                    discarded++;
+                }
+            }
+        }
+        return discarded;
+    }
+
     public void save()  {
-        try {
-            File save = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), fileNumber + ".jpg");
-            FileOutputStream fos = new FileOutputStream(save);
-            setBackgroundColor(Color.WHITE);
-            getDrawingCache().compress(
-                    Bitmap.CompressFormat.JPEG, 100, fos);
-            fos.flush();
-            fos.close();
+        // the page is encoded, rendered and written on a background thread
+        File pictures = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        // continue numbering after images saved in earlier sessions
+        while (new File(pictures, fileNumber + ".jpg").exists())
             fileNumber++;
-            Log.v(TAG, "file saved at " + save.getPath());
-            Toast.makeText(context,
-                    "Succesfully saved", Toast.LENGTH_LONG)
-                    .show();
-        } catch (Exception e) {
-            Log.e("Error--------->", e.toString());
-        }
+        File save = new File(pictures, fileNumber + ".jpg");
+        fileNumber++;
+        final long version = page.getVersion();
+        final StrokeJournal pageJournal = journal;
+        pageSaver.save(page, width, height, viewport, pageFile, save, new PageSaver.Callback() {
+            @Override
+            public void onSaved(File pageFile, File imageFile) {
+                // the journal only has to cover changes made after this save
+                pageJournal.checkpoint(version);
+                Toast.makeText(context,
+                        "Succesfully saved", Toast.LENGTH_LONG)
+                        .show();
+            }
+
+            @Override
+            public void onSaveFailed(File pageFile, Exception e) {
+                Log.e("Error--------->", e.toString());
+            }
+        });
+    }
+
+    /** Exports the whole notebook as one vector PDF in Downloads, off the UI thread. */
+    public void exportPdf() {
+        File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        export(new File(downloads, "notebook.pdf"), true);
+    }
+
+    /** Exports every page of the notebook as an SVG file in Downloads, off the UI thread. */
+    public void exportSvg() {
+        File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        export(new File(downloads, "notebook-svg"), false);
     }
 
-    private void touch_start(float x, float y) {
-        drawPoint = true;
-        drawPath = new Path();
+    private void export(final File target, final boolean pdf) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        final NotebookExporter exporter = new NotebookExporter(notebook, threads,
+                threads * EXPORT_PAGES_PER_THREAD);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    if (pdf) {
+                        exporter.exportPdf(target);
+                    } else {
+                        exporter.exportSvg(target);
+                    }
+                    message = "Exported to " + target.getPath();
+                } catch (IOException e) {
+                    Log.e(TAG, "export failed", e);
+                    message = "Export failed";
+                }
+                final String result = message;
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, result, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "NotebookExporter").start();
+    }
+
+    /** Saves a page that is no longer shown, without an image. */
+    private void savePage(Page left, final int index) {
+        final long version = left.getVersion();
+        leftVersions.put(index, version);
+        File file = notebook.getPageFile(index);
+        pageSaver.save(left, width, height, viewport, file, null, new PageSaver.Callback() {
+            @Override
+            public void onSaved(File pageFile, File imageFile) {
+                Long newest = leftVersions.get(index);
+                if (index != pageIndex && newest != null && newest == version) {
+                    leftVersions.remove(index);
+                    // nobody is journalling the page, and the file now has all of its changes
+                    notebook.getJournalFile(index).delete();
+                }
+            }
+
+            @Override
+            public void onSaveFailed(File pageFile, Exception e) {
+                Log.e(TAG, "could not save page " + index, e);
+            }
+        });
+    }
+
+    private void touch_start(int slot, float x, float y, float width, long timeMillis) {
+        drawPoints[slot] = true;
+        startTimes[slot] = timeMillis;
+        if (drawPaths[slot] == null) {
+            drawPaths[slot] = new Path();
+        }
+        Path drawPath = drawPaths[slot];
         drawPath.reset();
         drawPath.moveTo(x, y);
-        drawCanvas.drawPath(drawPath, drawPaint);
-        mX = x;
-        mY = y;
+        drawStrokes[slot] = new Stroke(drawPaint.getColor(), width, x, y);
+        lastX[slot] = x;
+        lastY[slot] = y;
+        endX[slot] = x;
+        endY[slot] = y;
+        invalidateSegment(slot, x, y);
     }
 
-    private void touch_move(float x, float y) {
+    private void touch_move(int slot, float x, float y) {
+        float mX = lastX[slot], mY = lastY[slot];
         float dx = Math.abs(x - mX);
         float dy = Math.abs(y - mY);
-        if (dx >= TOUCH_TOLERANCE || dy >= TOUCH_TOLERANCE) {
-            drawPath.quadTo(mX, mY, (x + mX) / 2, (y + mY) / 2);
-            drawPoint = false;
-            drawCanvas.drawPath(drawPath,drawPaint);
-            mX = x;
-            mY = y;
+        float tolerance = TOUCH_TOLERANCE / viewport.getScale();
+        if (dx >= tolerance || dy >= tolerance) {
+            endX[slot] = (x + mX) / 2;
+            endY[slot] = (y + mY) / 2;
+            drawPaths[slot].quadTo(mX, mY, endX[slot], endY[slot]);
+            drawStrokes[slot].addPoint(x, y);
+            drawPoints[slot] = false;
+            lastX[slot] = x;
+            lastY[slot] = y;
+            invalidateSegment(slot, mX, mY);
         }
     }
 
 
-    private void touch_up() {
-        if (drawPoint == true) {
+    private void touch_up(int slot) {
+        Stroke stroke = drawStrokes[slot];
+        if (stroke == null)
+            return;
+        clearTail(slot);
+        if (drawPoints[slot]) {
             Log.v("AAAAAAAAAAA", "touch up draw point");
-            drawCanvas.drawPoint(mX, mY, drawPaint);
-            Point p = new Point();
-            p.set((int) mX, (int) mY);
-            points.add(p);
-            pointcolor.add(drawPaint.getColor());
-            marker.add(0);
-
         } else {
             Log.v("AAAAAAAAAAA", "touch up draw line");
-            drawPath.lineTo(mX, mY);
-            drawCanvas.drawPath(drawPath, drawPaint);
-            paths.add(drawPath);
-            pathscolor.add(drawPaint.getColor());
-            marker.add(1);
+            drawPaths[slot].lineTo(lastX[slot], lastY[slot]);
+        }
+        drawStrokes[slot] = null;
+        stroke.finish();
+        history.perform(new History.AddStroke(stroke));
+        if (recentStrokes.size() == contacts.capacity()) {
+            recentStrokes.removeFirst();
         }
+        recentStrokes.addLast(new ContactStroke(stroke, contacts.getContactId(slot),
+                startTimes[slot]));
+    }
+
+    /** Drops every stroke being drawn without adding it to the page. */
+    private void dropStrokes() {
+        for (int slot = 0; slot < drawStrokes.length; slot++) {
+            drawStrokes[slot] = null;
+            hasTail[slot] = false;
+        }
+        contacts.clear();
+        recentStrokes.clear();
+    }
+
+    /** Repaints the area between a contact's last point and the given one. */
+    private void invalidateSegment(int slot, float fromX, float fromY) {
+        float pad = drawStrokes[slot].getWidth() / 2;
+        invalidatePage(Math.min(fromX, lastX[slot]) - pad, Math.min(fromY, lastY[slot]) - pad,
+                Math.max(fromX, lastX[slot]) + pad, Math.max(fromY, lastY[slot]) + pad);
+    }
+
+    /** Repaints the area of a stroke being drawn, before it goes away. */
+    private void invalidateStroke(int slot) {
+        Stroke stroke = drawStrokes[slot];
+        invalidatePage(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
     }
 
     public void clearCanvas() {
 
-        if (marker.size() > 0) {
-            paths.clear();
-            points.clear();
-            pathscolor.clear();
-            pointcolor.clear();
-            invalidate();
+        if (page.size() > 0) {
+            history.perform(new History.ClearPage());
         }
     }
 
     public void undo() {
-        if (marker.size() > 0) {
-            if (marker.get(marker.size() - 1) == 1) {
-                if (paths.size() > 0) {
-                    paths.remove(paths.size() - 1);
-                    pathscolor.remove(pathscolor.size() - 1);
-                    marker.remove(marker.size() - 1);
-                    invalidate();
-                }
-            } else {
-                if (points.size() > 0) {
-                    points.remove(points.size() - 1);
-                    pointcolor.remove(pointcolor.size() - 1);
-                    marker.remove(marker.size() - 1);
-                    invalidate();
+        if (history.undo()) {
+            syncPenColor();
+        }
+    }
 
-                }
+    public void redo() {
+        if (history.redo()) {
+            syncPenColor();
+        }
+    }
 
-            }
+    /**
+     * Keeps the tile cache in step with the page: added ink is painted into the cached tiles,
+     * removed ink drops only the tiles it was on.
+     */
+    private final Page.Listener pageListener = new Page.Listener() {
+        @Override
+        public void onStrokeAdded(Stroke stroke) {
+            drawIntoCachedTiles(stroke);
+            invalidatePage(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
+        }
+
+        @Override
+        public void onStrokeRemoved(Stroke stroke, int index) {
+            tileCache.invalidate(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
+            invalidatePage(stroke.getLeft(), stroke.getTop(), stroke.getRight(), stroke.getBottom());
+        }
+
+        @Override
+        public void onPageReplaced() {
+            tileCache.clear();
+            invalidate();
+        }
+    };
+
+    /** Invalidates the screen area showing the given page rectangle. */
+    private void invalidatePage(float left, float top, float right, float bottom) {
+        invalidate((int) Math.floor(viewport.toScreenX(left)) - 1,
+                (int) Math.floor(viewport.toScreenY(top)) - 1,
+                (int) Math.ceil(viewport.toScreenX(right)) + 1,
+                (int) Math.ceil(viewport.toScreenY(bottom)) + 1);
+    }
+
+    /** A stroke added to the page, with the contact that drew it and when it started. */
+    private static final class ContactStroke {
+        final Stroke stroke;
+        final int contactId;
+        final long startTime;
+
+        ContactStroke(Stroke stroke, int contactId, long startTime) {
+            this.stroke = stroke;
+            this.contactId = contactId;
+            this.startTime = startTime;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+package com.example.android.canvas;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Undo/redo log for a {@link Page}. Every edit is a {@link Command} that knows how to apply
+ * and revert itself, so undoing or redoing costs the same however much ink is on the page;
+ * views only redraw the area the command touched.
+ *
+ * <p>Clearing the page keeps the removed strokes inside the command so the clear can be
+ * undone; that is the only place the log holds a copy of page state. The log is capped both
+ * in number of commands and in the bytes those commands retain, dropping the oldest first.</p>
+ */
+public class History {
+
+    /** A reversible edit to a page. */
+    public interface Command {
+        void apply(Page page);
+
+        void revert(Page page);
+
+        /**
+         * Approximate memory kept alive only by this command, which may differ between
+         * applied and reverted.
+         */
+        int sizeBytes();
+    }
+
+    private final Page page;
+    private final int maxCommands;
+    private final int maxBytes;
+    private final ArrayDeque<Command> undoStack = new ArrayDeque<Command>();
+    private final ArrayDeque<Command> redoStack = new ArrayDeque<Command>();
+    private int bytes;
+
+    public History(Page page, int maxCommands, int maxBytes) {
+        this.page = page;
+        this.maxCommands = maxCommands;
+        this.maxBytes = maxBytes;
+    }
+
+    public Page getPage() {
+        return page;
+    }
+
+    /** Applies a new command. Anything that could have been redone is discarded. */
+    public void perform(Command command) {
+        command.apply(page);
+        while (!redoStack.isEmpty()) {
+            bytes -= redoStack.removeLast().sizeBytes();
+        }
+        undoStack.addLast(command);
+        bytes += command.sizeBytes();
+        trim();
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public boolean undo() {
+        if (undoStack.isEmpty()) {
+            return false;
+        }
+        Command command = undoStack.removeLast();
+        bytes -= command.sizeBytes();
+        command.revert(page);
+        bytes += command.sizeBytes();
+        redoStack.addLast(command);
+        trim();
+        return true;
+    }
+
+    /**
+     * Takes a stroke that was never meant to be drawn off the page and forgets the command that
+     * added it: it cannot be redone. Only strokes added since the last other kind of edit can be
+     * discarded, so that no later command depends on them.
+     */
+    public boolean discardStroke(Stroke stroke) {
+        Iterator<Command> it = undoStack.descendingIterator();
+        while (it.hasNext()) {
+            Command command = it.next();
+            if (!(command instanceof AddStroke)) {
+                return false;
+            }
+            if (((AddStroke) command).getStroke() == stroke) {
+                it.remove();
+                bytes -= command.sizeBytes();
+                command.revert(page);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean redo() {
+        if (redoStack.isEmpty()) {
+            return false;
+        }
+        Command command = redoStack.removeLast();
+        bytes -= command.sizeBytes();
+        command.apply(page);
+        bytes += command.sizeBytes();
+        undoStack.addLast(command);
+        trim();
+        return true;
+    }
+
+    /** Forgets all history without touching the page. */
+    public void reset() {
+        undoStack.clear();
+        redoStack.clear();
+        bytes = 0;
+    }
+
+    public int sizeBytes() {
+        return bytes;
+    }
+
+    private void trim() {
+        while (!undoStack.isEmpty()
+                && (undoStack.size() + redoStack.size() > maxCommands || bytes > maxBytes)) {
+            bytes -= undoStack.removeFirst().sizeBytes();
+        }
+        // undone strokes can outweigh everything left: give up the furthest redo first
+        while (!redoStack.isEmpty()
+                && (redoStack.size() > maxCommands || bytes > maxBytes)) {
+            bytes -= redoStack.removeFirst().sizeBytes();
+        }
+    }
+
+    /** Commits a finished stroke to the page. */
+    public static class AddStroke implements Command {
+        private final Stroke stroke;
+        private boolean applied;
+
+        public AddStroke(Stroke stroke) {
+            this.stroke = stroke;
+        }
+
+        public Stroke getStroke() {
+            return stroke;
+        }
+
+        @Override
+        public void apply(Page page) {
+            page.add(stroke);
+            applied = true;
+        }
+
+        @Override
+        public void revert(Page page) {
+            page.remove(stroke);
+            applied = false;
+        }
+
+        @Override
+        public int sizeBytes() {
+            // the page owns the stroke while the command can be undone; once undone, the
+            // command waiting to be redone is all that keeps it
+            return applied ? 16 : 16 + stroke.sizeBytes();
+        }
+    }
+
+    /** Removes every stroke from the page, keeping them so they can be restored. */
+    public static class ClearPage implements Command {
+        private List<Stroke> removed;
+        private int removedBytes;
+
+        @Override
+        public void apply(Page page) {
+            removed = page.clear();
+            removedBytes = 0;
+            for (int i = 0; i < removed.size(); i++) {
+                removedBytes += removed.get(i).sizeBytes();
+            }
+        }
+
+        @Override
+        public void revert(Page page) {
+            page.setStrokes(removed);
+            removed = null;
+            removedBytes = 0;
+        }
+
+        @Override
+        public int sizeBytes() {
+            return 16 + removedBytes;
+        }
+    }
+
+    /** Changes the colour used for the next strokes. */
+    public static class ChangeColor implements Command {
+        private final int from;
+        private final int to;
+
+        public ChangeColor(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void apply(Page page) {
+            page.setPenColor(to);
+        }
+
+        @Override
+        public void revert(Page page) {
+            page.setPenColor(from);
+        }
+
+        @Override
+        public int sizeBytes() {
+            return 16;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.canvas;
+
+import java.util.Arrays;
+
+/**
+ * Guesses where each pen will be a short time after its latest sample, so that ink can be
+ * drawn up to where the pen is rather than where the pad last saw it.
+ *
+ * <p>The model is constant acceleration: velocity and acceleration come from the differences
+ * between the last three samples, and the position is extrapolated over the horizon. The
+ * distance of a guess from the last sample is capped, so that a noisy estimate cannot throw ink
+ * across the page. State lives in arrays indexed by slot, as for {@link OneEuroFilter}.</p>
+ *
+ * <p>For each contact one guess at a time is checked against where the pen turned out to be,
+ * interpolated between the samples around the guessed time, and the error goes into a
+ * histogram.</p>
+ */
+public class MotionPredictor {
+
+    /** Width of a histogram bucket, in pad mm. */
+    public static final float BUCKET_WIDTH = 0.5f;
+    /** Number of histogram buckets; the last one also counts every larger error. */
+    public static final int BUCKETS = 16;
+    /** Default horizon in milliseconds. */
+    public static final long DEFAULT_HORIZON_MILLIS = 25;
+
+    // largest distance in pad mm a guess may be from the last sample
+    private static final float MAX_LEAD = 10;
+    // as in OneEuroFilter: samples that share a Bluetooth read are taken to be a frame apart
+    private static final float MIN_DT = 1 / 125f;
+
+    private long horizonMillis = DEFAULT_HORIZON_MILLIS;
+
+    // per slot: samples seen (up to 3), last sample, velocity and acceleration
+    private final int[] samples;
+    private final long[] times;
+    private final float[] x;
+    private final float[] y;
+    private final float[] vx;
+    private final float[] vy;
+    private final float[] ax;
+    private final float[] ay;
+    // per slot: the guess waiting to be checked, if any
+    private final boolean[] pending;
+    private final long[] guessTimes;
+    private final float[] guessX;
+    private final float[] guessY;
+    // latest guess
+    private final float[] predictedX;
+    private final float[] predictedY;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long checked;
+
+    /**
+     * @param capacity Number of slots.
+     */
+    public MotionPredictor(int capacity) {
+        samples = new int[capacity];
+        times = new long[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        vx = new float[capacity];
+        vy = new float[capacity];
+        ax = new float[capacity];
+        ay = new float[capacity];
+        pending = new boolean[capacity];
+        guessTimes = new long[capacity];
+        guessX = new float[capacity];
+        guessY = new float[capacity];
+        predictedX = new float[capacity];
+        predictedY = new float[capacity];
+    }
+
+    /** How far ahead of the latest sample to guess, in milliseconds. 0 turns guessing off. */
+    public void setHorizon(long millis) {
+        horizonMillis = millis;
+    }
+
+    public long getHorizon() {
+        return horizonMillis;
+    }
+
+    /** Starts following a new contact in slot. */
+    public void start(int slot, float x, float y, long timeMillis) {
+        samples[slot] = 1;
+        times[slot] = timeMillis;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        vx[slot] = vy[slot] = 0;
+        ax[slot] = ay[slot] = 0;
+        pending[slot] = false;
+    }
+
+    /** Adds the next sample of the contact in slot, and guesses ahead of it. */
+    public void add(int slot, float x, float y, long timeMillis) {
+        if (pending[slot] && timeMillis >= guessTimes[slot]) {
+            check(slot, x, y, timeMillis);
+        }
+        float dt = Math.max(MIN_DT, (timeMillis - times[slot]) / 1000f);
+        float newVx = (x - this.x[slot]) / dt;
+        float newVy = (y - this.y[slot]) / dt;
+        if (samples[slot] >= 2) {
+            ax[slot] = (newVx - vx[slot]) / dt;
+            ay[slot] = (newVy - vy[slot]) / dt;
+        }
+        vx[slot] = newVx;
+        vy[slot] = newVy;
+        samples[slot] = Math.min(3, samples[slot] + 1);
+        times[slot] = timeMillis;
+        this.x[slot] = x;
+        this.y[slot] = y;
+
+        if (hasPrediction(slot)) {
+            float h = horizonMillis / 1000f;
+            float dx = vx[slot] * h;
+            float dy = vy[slot] * h;
+            if (samples[slot] >= 3) {
+                dx += ax[slot] * h * h / 2;
+                dy += ay[slot] * h * h / 2;
+            }
+            float leadSquared = dx * dx + dy * dy;
+            if (leadSquared > MAX_LEAD * MAX_LEAD) {
+                float lead = (float) Math.sqrt(leadSquared);
+                dx *= MAX_LEAD / lead;
+                dy *= MAX_LEAD / lead;
+            }
+            predictedX[slot] = x + dx;
+            predictedY[slot] = y + dy;
+            if (!pending[slot]) {
+                pending[slot] = true;
+                guessTimes[slot] = timeMillis + horizonMillis;
+                guessX[slot] = predictedX[slot];
+                guessY[slot] = predictedY[slot];
+            }
+        }
+    }
+
+    /** Whether there is a guess for the contact in slot. */
+    public boolean hasPrediction(int slot) {
+        return horizonMillis > 0 && samples[slot] >= 2;
+    }
+
+    /** Guessed x of the contact in slot, the horizon after its latest sample. */
+    public float getX(int slot) {
+        return predictedX[slot];
+    }
+
+    /** Guessed y of the contact in slot, the horizon after its latest sample. */
+    public float getY(int slot) {
+        return predictedY[slot];
+    }
+
+    /**
+     * Counts of checked guesses by error: bucket i counts errors from i * {@link #BUCKET_WIDTH}
+     * up to the next bucket, in pad mm.
+     */
+    public long[] getErrorHistogram() {
+        return Arrays.copyOf(histogram, BUCKETS);
+    }
+
+    /** Number of guesses checked so far. */
+    public long getCheckedCount() {
+        return checked;
+    }
+
+    /** Error in pad mm that the given fraction of checked guesses stayed within, by bucket. */
+    public float getErrorPercentile(float fraction) {
+        if (checked == 0) {
+            return 0;
+        }
+        long wanted = (long) Math.ceil(checked * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= wanted) {
+                return (i + 1) * BUCKET_WIDTH;
+            }
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public String toString() {
+        return "MotionPredictor[horizon=" + horizonMillis + "ms, checked=" + checked
+                + ", p50=" + getErrorPercentile(0.5f) + "mm, p95=" + getErrorPercentile(0.95f)
+                + "mm]";
+    }
+
+    private void check(int slot, float x, float y, long timeMillis) {
+        // where the pen was at the guessed time, between the last sample and this one
+        float actualX = x, actualY = y;
+        long span = timeMillis - times[slot];
+        if (span > 0) {
+            float t = (float) (guessTimes[slot] - times[slot]) / span;
+            actualX = this.x[slot] + (x - this.x[slot]) * t;
+            actualY = this.y[slot] + (y - this.y[slot]) * t;
+        }
+        float errorX = actualX - guessX[slot];
+        float errorY = actualY - guessY[slot];
+        float error = (float) Math.sqrt(errorX * errorX + errorY * errorY);
+        histogram[Math.min(BUCKETS - 1, (int) (error / BUCKET_WIDTH))]++;
+        checked++;
+        pending[slot] = false;
+    }
+}
@@ -0,0 +1,330 @@
+package com.example.android.canvas;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A numbered sequence of pages stored in one directory, each as a {@link PageFile} plus a
+ * {@link StrokeJournal} of changes made since it was last saved.
+ *
+ * <p>Only the page being shown is fully in use. When the view turns to page n, the pages
+ * either side of it are loaded on a background thread and an image of each is rendered at the
+ * view's size and zoom, which also decodes the strokes it shows. Loaded neighbours are kept
+ * until the next turn; rendered images go into an LRU cache bounded by bytes, so turning to a
+ * page that was shown or prefetched recently can draw its first frame from one bitmap instead
+ * of rasterising every visible tile.</p>
+ */
+public class Notebook {
+    private static final String TAG = "Notebook";
+
+    /** Image of a page as the view showed it through a particular viewport. */
+    public static class RenderedPage {
+        public final Bitmap bitmap;
+        // page version and viewport the image was rendered at
+        public final long version;
+        public final float scale, originX, originY;
+
+        RenderedPage(Bitmap bitmap, long version, float scale, float originX, float originY) {
+            this.bitmap = bitmap;
+            this.version = version;
+            this.scale = scale;
+            this.originX = originX;
+            this.originY = originY;
+        }
+
+        /** Whether the image shows page as seen through viewport. */
+        public boolean matches(Page page, Viewport viewport) {
+            return version == page.getVersion() && scale == viewport.getScale()
+                    && originX == viewport.getOriginX() && originY == viewport.getOriginY();
+        }
+    }
+
+    /** A page loaded from its file and journal, with where the journal was found to end. */
+    private static class Loaded {
+        final Page page;
+        final long journalLength;
+
+        Loaded(Page page, long journalLength) {
+            this.page = page;
+            this.journalLength = journalLength;
+        }
+    }
+
+    /** Told on the UI thread when a prefetched page has been rendered. */
+    public interface Listener {
+        void onPageRendered(int index);
+    }
+
+    private final File directory;
+    private final LruCache<Integer, RenderedPage> rendered;
+    // neighbours of the current page, loaded in the background
+    private final HashMap<Integer, Loaded> prefetched = new HashMap<Integer, Loaded>();
+    // a single worker that goes away while there is nothing to prefetch
+    private final ExecutorService worker = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private Listener listener;
+    private int pageCount;
+    private long journalLength = -1;
+    // bumped on every turn so results of stale prefetches are dropped
+    private volatile int generation;
+
+    /**
+     * @param maxRenderedBytes Memory budget for rendered page images.
+     */
+    public Notebook(File directory, int maxRenderedBytes) {
+        this.directory = directory;
+        rendered = new LruCache<Integer, RenderedPage>(maxRenderedBytes) {
+            @Override
+            protected int sizeOf(Integer key, RenderedPage value) {
+                return value.bitmap.getRowBytes() * value.bitmap.getHeight();
+            }
+        };
+        pageCount = 1;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                int index = indexOf(name);
+                if (index >= pageCount) {
+                    pageCount = index + 1;
+                }
+            }
+        }
+    }
+
+    private static int indexOf(String name) {
+        if (!name.startsWith("page-")) {
+            return -1;
+        }
+        int end = name.indexOf('.');
+        try {
+            return Integer.parseInt(name.substring(5, end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public File getPageFile(int index) {
+        return new File(directory, "page-" + index + PageFile.EXTENSION);
+    }
+
+    public File getJournalFile(int index) {
+        return new File(directory, "page-" + index + ".journal");
+    }
+
+    /**
+     * Returns page index, taking it from the prefetched neighbours if it is there and
+     * otherwise loading it now, which maps the page file and replays its journal but decodes
+     * no strokes. Turning past the last page adds a blank one.
+     */
+    public Page open(int index) {
+        if (index >= pageCount) {
+            pageCount = index + 1;
+        }
+        Loaded loaded = prefetched.remove(index);
+        if (loaded == null) {
+            loaded = load(index);
+        }
+        journalLength = loaded.journalLength;
+        return loaded.page;
+    }
+
+    /**
+     * Where the journal of the page last returned by {@link #open} ends, as found when it was
+     * replayed, or -1 if the page was kept in memory and its journal needs no trimming.
+     */
+    public long getJournalLength() {
+        return journalLength;
+    }
+
+    /** The rendered page images, for a {@link BitmapPool} to account for and trim. */
+    public BitmapPool.Cache getRenderedCache() {
+        return new BitmapPool.Cache() {
+            @Override
+            public int sizeBytes() {
+                return rendered.size();
+            }
+
+            @Override
+            public void trimToSize(int maxBytes) {
+                BitmapPool.trim(rendered, maxBytes);
+            }
+        };
+    }
+
+    /** The cached image of page index, or null. */
+    public RenderedPage getRendered(int index) {
+        return rendered.get(index);
+    }
+
+    /**
+     * Prefetches and renders the pages either side of current, as seen through viewport. The
+     * page being turned away from is kept as it is in memory, since its latest changes may not
+     * be saved yet, and only rendered again if it has changed.
+     *
+     * @param left Page being turned away from, or null.
+     */
+    public void prefetchAround(int current, int leftIndex, Page left, int width, int height,
+                               Viewport viewport) {
+        final int turn = ++generation;
+        for (Iterator<Integer> i = prefetched.keySet().iterator(); i.hasNext(); ) {
+            int index = i.next();
+            if (index != current - 1 && index != current + 1) {
+                i.remove();
+            }
+        }
+        if (left != null && (leftIndex == current - 1 || leftIndex == current + 1)) {
+            prefetched.put(leftIndex, new Loaded(left, -1));
+        }
+        for (int index = current - 1; index <= current + 1; index += 2) {
+            if (index < 0 || index >= pageCount) {
+                continue;
+            }
+            Loaded loaded = prefetched.get(index);
+            Page page = loaded == null ? null : loaded.page;
+            RenderedPage image = rendered.get(index);
+            if (page != null && image != null && image.matches(page, viewport)) {
+                continue;
+            }
+            Stroke[] snapshot = null;
+            if (page != null) {
+                List<Stroke> strokes = page.getStrokes();
+                snapshot = strokes.toArray(new Stroke[strokes.size()]);
+            }
+            worker.execute(new Prefetch(turn, index, snapshot,
+                    page == null ? 0 : page.getVersion(), width, height, viewport.getScale(),
+                    viewport.getOriginX(), viewport.getOriginY()));
+        }
+    }
+
+    /**
+     * Loads page index from its file and journal, leaving the point data of the strokes to be
+     * decoded when they are drawn. Touches no other state, so it may be called on any thread.
+     */
+    Page read(int index) {
+        return load(index).page;
+    }
+
+    private Loaded load(int index) {
+        Page page = new Page();
+        long length = -1;
+        try {
+            File file = getPageFile(index);
+            if (file.exists()) {
+                PageFile pageFile;
+                try {
+                    pageFile = PageFile.open(file);
+                } catch (IOException e) {
+                    // keep what is left of the page out of the way of the next save
+                    File corrupt = new File(file.getPath() + ".corrupt");
+                    Log.e(TAG, "page " + index + " is corrupt, moved to " + corrupt, e);
+                    if (!file.renameTo(corrupt)) {
+                        Log.e(TAG, "could not move " + file);
+                    }
+                    return new Loaded(page, -1);
+                }
+                page.load(pageFile.strokes(), pageFile.getVersion());
+            }
+            StrokeJournal journal = new StrokeJournal(getJournalFile(index), 1, 0);
+            journal.replay(page);
+            length = journal.getValidLength();
+        } catch (IOException e) {
+            Log.e(TAG, "could not load page " + index, e);
+        }
+        return new Loaded(page, length);
+    }
+
+    /**
+     * Loads one neighbour on the worker unless a snapshot of it was given, renders it unless
+     * the cached image is still current, and hands the results to the UI thread.
+     */
+    private class Prefetch implements Runnable {
+        final int turn, index;
+        final Stroke[] snapshot;
+        final long version;
+        final int width, height;
+        final float scale, originX, originY;
+
+        Prefetch(int turn, int index, Stroke[] snapshot, long version, int width, int height,
+                 float scale, float originX, float originY) {
+            this.turn = turn;
+            this.index = index;
+            this.snapshot = snapshot;
+            this.version = version;
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.originX = originX;
+            this.originY = originY;
+        }
+
+        @Override
+        public void run() {
+            if (turn != generation) {
+                // the user has turned again; the pages this was for are no longer neighbours
+                return;
+            }
+            Loaded loaded = null;
+            Stroke[] strokes = snapshot;
+            long pageVersion = version;
+            if (strokes == null) {
+                loaded = load(index);
+                List<Stroke> loadedStrokes = loaded.page.getStrokes();
+                strokes = loadedStrokes.toArray(new Stroke[loadedStrokes.size()]);
+                pageVersion = loaded.page.getVersion();
+            }
+            RenderedPage cached = rendered.get(index);
+            final RenderedPage image = width == 0 || height == 0 || (cached != null
+                    && cached.version == pageVersion && cached.scale == scale
+                    && cached.originX == originX && cached.originY == originY)
+                    ? null : render(strokes, pageVersion);
+            final Loaded loadedPage = loaded;
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (turn != generation) {
+                        return;
+                    }
+                    if (loadedPage != null) {
+                        prefetched.put(index, loadedPage);
+                    }
+                    if (image != null) {
+                        rendered.put(index, image);
+                        if (listener != null) {
+                            listener.onPageRendered(index);
+                        }
+                    }
+                }
+            });
+        }
+
+        private RenderedPage render(Stroke[] strokes, long pageVersion) {
+            // drawing decodes the points of every visible stroke here, not on the UI thread
+            Bitmap bitmap = PageRasterizer.render(strokes, width, height, scale, originX, originY,
+                    Color.TRANSPARENT);
+            return new RenderedPage(bitmap, pageVersion, scale, originX, originY);
+        }
+    }
+}
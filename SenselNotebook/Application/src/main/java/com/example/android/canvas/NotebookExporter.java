@@ -0,0 +1,175 @@
+package com.example.android.canvas;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exports every page of a {@link Notebook} as vector graphics, as one PDF document or as one
+ * SVG file per page, without rasterising anything. Each page is as large as the pad, or larger
+ * where ink was drawn beyond it, since the page can be panned past the pad's area.
+ *
+ * <p>Pages are loaded and encoded on a pool of worker threads, while the calling thread writes
+ * the results out in page order. At most {@code maxInFlight} pages are loaded or waiting to be
+ * written at any time, so memory stays bounded however long the notebook is; each page's
+ * strokes can be collected as soon as the page has been written.</p>
+ */
+public class NotebookExporter {
+
+    private final Notebook notebook;
+    private final int threads;
+    private final int maxInFlight;
+
+    /**
+     * @param threads Worker threads that load and encode pages.
+     * @param maxInFlight Pages that may be in memory at once; at least threads.
+     */
+    public NotebookExporter(Notebook notebook, int threads, int maxInFlight) {
+        this.notebook = notebook;
+        this.threads = threads;
+        this.maxInFlight = Math.max(threads, maxInFlight);
+    }
+
+    /** Writes the notebook to file as a PDF document. Blocks until done. */
+    public void exportPdf(File file) throws IOException {
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            final PdfExporter pdf = new PdfExporter(out);
+            run(new PageTask<PdfExporter.EncodedPage>() {
+                @Override
+                public PdfExporter.EncodedPage encode(int index) {
+                    return PdfExporter.encodePage(notebook.read(index).getStrokes());
+                }
+
+                @Override
+                public void write(int index, PdfExporter.EncodedPage page) throws IOException {
+                    pdf.addPage(page);
+                }
+            });
+            pdf.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Writes each page of the notebook to directory as page-N.svg. Blocks until done. */
+    public void exportSvg(final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        // pages go to separate files, so the workers write them directly
+        run(new PageTask<Void>() {
+            @Override
+            public Void encode(int index) throws IOException {
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(new File(directory, "page-" + index + ".svg")),
+                        "UTF-8"));
+                try {
+                    SvgExporter.writePage(notebook.read(index).getStrokes(), out);
+                } finally {
+                    out.close();
+                }
+                return null;
+            }
+
+            @Override
+            public void write(int index, Void page) {
+            }
+        });
+    }
+
+    /** Work for one page, split into the part that runs in parallel and the ordered part. */
+    private interface PageTask<T> {
+        T encode(int index) throws IOException;
+
+        void write(int index, T page) throws IOException;
+    }
+
+    private <T> void run(final PageTask<T> task) throws IOException {
+        int pageCount = notebook.getPageCount();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<T>> inFlight = new ArrayDeque<Future<T>>(maxInFlight);
+        try {
+            int next = 0;
+            for (int index = 0; index < pageCount; index++) {
+                // keep the window full, then wait for the oldest page
+                while (next < pageCount && inFlight.size() < maxInFlight) {
+                    final int page = next++;
+                    inFlight.add(pool.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws IOException {
+                            return task.encode(page);
+                        }
+                    }));
+                }
+                task.write(index, await(inFlight.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("export interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Area of a page to export, as left, top, right and bottom in page units: the pad's area,
+     * grown to take in every stroke. Uses the bounds strokes carry, so nothing is decoded.
+     */
+    static float[] pageArea(List<Stroke> strokes) {
+        float[] area = {0, 0, SenselPad.WIDTH, SenselPad.HEIGHT};
+        for (int i = 0; i < strokes.size(); i++) {
+            Stroke s = strokes.get(i);
+            area[0] = Math.min(area[0], s.getLeft());
+            area[1] = Math.min(area[1], s.getTop());
+            area[2] = Math.max(area[2], s.getRight());
+            area[3] = Math.max(area[3], s.getBottom());
+        }
+        return area;
+    }
+
+    /**
+     * Appends value with at most three decimals and no exponent, the way both SVG and PDF
+     * want numbers, independent of the default locale.
+     */
+    static void appendNumber(StringBuilder out, float value) {
+        long thousandths = Math.round(value * 1000.0);
+        if (thousandths < 0) {
+            out.append('-');
+            thousandths = -thousandths;
+        }
+        out.append(thousandths / 1000);
+        int fraction = (int) (thousandths % 1000);
+        if (fraction != 0) {
+            out.append('.');
+            int digit = 100;
+            while (fraction != 0) {
+                out.append((char) ('0' + fraction / digit));
+                fraction %= digit;
+                digit /= 10;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.android.canvas;
+
+/**
+ * Adaptive low-pass filter for pen positions (the "1 Euro filter" of Casiez, Roussel and
+ * Vogel), for a number of contacts at once.
+ *
+ * <p>The cutoff frequency follows the speed of the pen: slow, careful movement is smoothed
+ * hard, which takes out the jitter of the pad, and fast movement is hardly smoothed at all, so
+ * the ink does not trail behind the pen. The state of every contact lives in arrays indexed by
+ * slot, so filtering allocates nothing. Results are read back with {@link #getX} and
+ * {@link #getY}.</p>
+ */
+public class OneEuroFilter {
+
+    // cutoff for the speed estimate itself, in Hz
+    private static final float DERIVATE_CUTOFF = 1;
+    // events closer together than this are taken to be this far apart: several frames of the
+    // pad can arrive in one Bluetooth read and share its time
+    private static final float MIN_DT = 1 / 125f;
+
+    // per slot: parameters, last output, last speed estimate and time of the last event
+    private final float[] minCutoffs;
+    private final float[] betas;
+    private final float[] x;
+    private final float[] y;
+    private final float[] dx;
+    private final float[] dy;
+    private final long[] times;
+
+    /**
+     * @param capacity Number of slots.
+     */
+    public OneEuroFilter(int capacity) {
+        minCutoffs = new float[capacity];
+        betas = new float[capacity];
+        x = new float[capacity];
+        y = new float[capacity];
+        dx = new float[capacity];
+        dy = new float[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * Starts filtering a new contact in slot from its first position, which passes unchanged.
+     *
+     * @param minCutoff Cutoff frequency in Hz while the pen is still. Lower smooths more.
+     * @param beta How fast the cutoff rises with speed, in Hz per unit of speed per second.
+     *             Higher lags less during fast strokes.
+     * @param timeMillis Time of the event in milliseconds.
+     */
+    public void start(int slot, float minCutoff, float beta, float x, float y, long timeMillis) {
+        minCutoffs[slot] = minCutoff;
+        betas[slot] = beta;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        dx[slot] = 0;
+        dy[slot] = 0;
+        times[slot] = timeMillis;
+    }
+
+    /** Filters the next position of the contact in slot. */
+    public void filter(int slot, float x, float y, long timeMillis) {
+        float dt = Math.max(MIN_DT, (timeMillis - times[slot]) / 1000f);
+        times[slot] = timeMillis;
+        float derivateAlpha = alpha(DERIVATE_CUTOFF, dt);
+        dx[slot] += derivateAlpha * ((x - this.x[slot]) / dt - dx[slot]);
+        dy[slot] += derivateAlpha * ((y - this.y[slot]) / dt - dy[slot]);
+        float speed = (float) Math.sqrt(dx[slot] * dx[slot] + dy[slot] * dy[slot]);
+        float alpha = alpha(minCutoffs[slot] + betas[slot] * speed, dt);
+        this.x[slot] += alpha * (x - this.x[slot]);
+        this.y[slot] += alpha * (y - this.y[slot]);
+    }
+
+    /** Filtered x of the contact in slot. */
+    public float getX(int slot) {
+        return x[slot];
+    }
+
+    /** Filtered y of the contact in slot. */
+    public float getY(int slot) {
+        return y[slot];
+    }
+
+    private static float alpha(float cutoff, float dt) {
+        float tau = (float) (1 / (2 * Math.PI * cutoff));
+        return 1 / (1 + tau / dt);
+    }
+}
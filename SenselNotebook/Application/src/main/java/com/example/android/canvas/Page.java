@@ -0,0 +1,136 @@
+package com.example.android.canvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The content of one notebook page: committed strokes in drawing order, a spatial index over
+ * them, and the colour the next stroke will be drawn in. Every change bumps a version number
+ * and is reported to the registered listeners, which is how views and caches learn which
+ * parts of the page need to be drawn again.
+ */
+public class Page {
+
+    /** Receives notifications about changes to the page. */
+    public interface Listener {
+        void onStrokeAdded(Stroke stroke);
+
+        /** @param index Position the stroke had in drawing order. */
+        void onStrokeRemoved(Stroke stroke, int index);
+
+        /** Called after a change that may have touched any part of the page. */
+        void onPageReplaced();
+    }
+
+    private static final float INDEX_CELL = 16;
+
+    private final ArrayList<Stroke> strokes = new ArrayList<Stroke>();
+    private final StrokeIndex index = new StrokeIndex(INDEX_CELL);
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    private int penColor;
+    private long version;
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getPenColor() {
+        return penColor;
+    }
+
+    public void setPenColor(int color) {
+        penColor = color;
+    }
+
+    public int size() {
+        return strokes.size();
+    }
+
+    /** The committed strokes, oldest first. Callers must not modify the list. */
+    public List<Stroke> getStrokes() {
+        return strokes;
+    }
+
+    public void add(Stroke stroke) {
+        strokes.add(stroke);
+        index.insert(stroke);
+        version++;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onStrokeAdded(stroke);
+        }
+    }
+
+    public void remove(Stroke stroke) {
+        // undo removes the newest stroke, so search from the end
+        int i = strokes.lastIndexOf(stroke);
+        if (i < 0) {
+            return;
+        }
+        strokes.remove(i);
+        index.remove(stroke);
+        version++;
+        for (int l = 0; l < listeners.size(); l++) {
+            listeners.get(l).onStrokeRemoved(stroke, i);
+        }
+    }
+
+    /** Removes every stroke and returns them, oldest first. */
+    public ArrayList<Stroke> clear() {
+        ArrayList<Stroke> removed = new ArrayList<Stroke>(strokes);
+        strokes.clear();
+        index.clear();
+        version++;
+        notifyReplaced();
+        return removed;
+    }
+
+    /** Replaces the page content with the given strokes, which must be in drawing order. */
+    public void setStrokes(List<Stroke> content) {
+        replace(content);
+        version++;
+        notifyReplaced();
+    }
+
+    /**
+     * Replaces the page content with strokes loaded from storage, taking over the version they
+     * were saved at.
+     */
+    public void load(List<Stroke> content, long savedVersion) {
+        replace(content);
+        version = savedVersion;
+        notifyReplaced();
+    }
+
+    private void replace(List<Stroke> content) {
+        strokes.clear();
+        index.clear();
+        for (int i = 0; i < content.size(); i++) {
+            strokes.add(content.get(i));
+            index.insert(content.get(i));
+        }
+    }
+
+    /** See {@link StrokeIndex#query}. */
+    public void query(float left, float top, float right, float bottom, List<Stroke> out) {
+        index.query(left, top, right, bottom, out);
+    }
+
+    /** See {@link StrokeIndex#hitTest}. */
+    public Stroke hitTest(float x, float y, float tolerance) {
+        return index.hitTest(x, y, tolerance);
+    }
+
+    private void notifyReplaced() {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onPageReplaced();
+        }
+    }
+}
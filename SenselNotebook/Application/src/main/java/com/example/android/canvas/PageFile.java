@@ -0,0 +1,673 @@
+package com.example.android.canvas;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary vector format for a single page, read through a memory map and saved by
+ * appending.
+ *
+ * <pre>
+ * header      magic "SNPG", short format version, short 0, long file id
+ * then, per save:
+ * point data  per stroke added since the last save: zigzag varints of the quantised first
+ *             point, then of the deltas
+ * index       long page version, int base, int removedCount, int styleCount, int strokeCount,
+ *             removedCount x int position in the base's stroke list, ascending,
+ *             styleCount x (int color, float width),
+ *             strokeCount x (int data offset, int data length, int point count, int style,
+ *                            float l, t, r, b)
+ * footer      int index offset, int index length, int crc32(index), magic "SNPE"
+ * </pre>
+ *
+ * An index with a base of -1 is a full one and lists every stroke of the page. Any other index
+ * is incremental: base is the position of the footer of the index it builds on, and the page's
+ * strokes are the base's, less the removed ones, followed by the ones this index lists.
+ *
+ * <p>Coordinates are quantised to {@link #QUANTUM} page units, so a typical stroke costs one or
+ * two bytes per sample. Opening a file maps it and reads nothing but the newest index and the
+ * ones it builds on; the strokes returned by {@link #strokes()} carry their bounds from the
+ * index and only decode their points when they are first drawn or hit-tested.</p>
+ *
+ * <p>A save appends the point data of the strokes the file does not hold yet, then an
+ * incremental index of what changed, so it costs I/O for what changed only. Once the
+ * incremental indexes on top of the newest full one would add up to more than a full index,
+ * the save writes a full index instead, which keeps opening a file about as cheap as reading
+ * one full index. The data and index are synced before the footer is appended; a file whose
+ * last footer is torn is read from the footer before it, and the next save cuts the torn part
+ * off. Once the data of removed strokes and the indexes no longer in use outweigh what the
+ * page needs, a save rewrites the file with one full index into a temporary one that is
+ * renamed over it, under a new file id. Existing mappings stay valid either way.</p>
+ *
+ * <p>Opening a file checks the header, every index it reads and every index entry against the
+ * size of the file, and fails with an IOException if they do not fit. Point data found to be
+ * corrupt while decoding is cut short at the last good point and logged, rather than thrown at
+ * whoever draws the stroke.</p>
+ */
+public class PageFile implements Stroke.Source {
+    private static final String TAG = "PageFile";
+
+    public static final String EXTENSION = ".snp";
+
+    private static final int MAGIC = 0x534e5047; // "SNPG"
+    private static final int FOOTER_MAGIC = 0x534e5045; // "SNPE"
+    private static final short FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int INDEX_HEADER_SIZE = 24;
+    private static final int STYLE_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 32;
+    private static final int FOOTER_SIZE = 16;
+    // base of a full index
+    private static final int NO_BASE = -1;
+    // garbage a file may always hold before a save rewrites it
+    private static final int MIN_GARBAGE = 64 * 1024;
+
+    /** Size of one quantisation step, in page units. */
+    public static final float QUANTUM = 0.01f;
+
+    private static final Random fileIds = new Random();
+
+    private final MappedByteBuffer buffer;
+    private final long fileId;
+    private final long version;
+    // position of the index entry, and of the style, of each stroke in drawing order
+    private final int[] entries;
+    private final int[] styles;
+    // end of the newest intact save
+    private final int end;
+    // bytes of point data the strokes refer to
+    private final long liveBytes;
+    // bytes of the indexes and footers the strokes were read from, and of the incremental ones
+    // among them
+    private final long indexBytes;
+    private final long incrementalBytes;
+    // bytes written by the save that produced this object, if it came from write
+    private long writtenBytes;
+    // position in the stroke list of each stroke known to have its points here, for the next save
+    private final IdentityHashMap<Stroke, Integer> known = new IdentityHashMap<Stroke, Integer>();
+
+    private PageFile(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a page file");
+        }
+        if (buffer.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported page format " + buffer.getShort(4));
+        }
+        fileId = buffer.getLong(8);
+        CRC32 crc = new CRC32();
+        int footer = findFooter(buffer, crc);
+        if (footer < 0) {
+            throw new IOException("no intact index");
+        }
+        end = footer + FOOTER_SIZE;
+        version = buffer.getLong(buffer.getInt(footer));
+
+        // the footers of the indexes to read, newest first, down to the newest full one
+        ArrayList<Integer> chain = new ArrayList<Integer>();
+        long chainBytes = 0;
+        for (int p = footer; p != NO_BASE; ) {
+            chain.add(p);
+            chainBytes += buffer.getInt(p + 4) + FOOTER_SIZE;
+            int indexOffset = buffer.getInt(p);
+            int base = buffer.getInt(indexOffset + 8);
+            if (base != NO_BASE && (base < HEADER_SIZE || base + FOOTER_SIZE > indexOffset
+                    || !isFooter(buffer, base, crc))) {
+                throw new IOException("corrupt index base at " + indexOffset);
+            }
+            p = base;
+        }
+        indexBytes = chainBytes;
+        int full = chain.get(chain.size() - 1);
+        incrementalBytes = chainBytes - buffer.getInt(full + 4) - FOOTER_SIZE;
+
+        int[] entries = new int[0];
+        int[] styles = new int[0];
+        for (int c = chain.size() - 1; c >= 0; c--) {
+            int indexFooter = chain.get(c);
+            int indexOffset = buffer.getInt(indexFooter);
+            int removedCount = buffer.getInt(indexOffset + 12);
+            int styleCount = buffer.getInt(indexOffset + 16);
+            int strokeCount = buffer.getInt(indexOffset + 20);
+            long removedOffset = indexOffset + INDEX_HEADER_SIZE;
+            long styleOffset = removedOffset + removedCount * 4L;
+            long entryOffset = styleOffset + styleCount * (long) STYLE_SIZE;
+            if (removedCount < 0 || styleCount < 0 || strokeCount < 0
+                    || removedCount > entries.length
+                    || entryOffset + strokeCount * (long) INDEX_ENTRY_SIZE != indexFooter) {
+                throw new IOException("corrupt index at " + indexOffset);
+            }
+            int[] resolvedEntries = new int[entries.length - removedCount + strokeCount];
+            int[] resolvedStyles = new int[resolvedEntries.length];
+            int n = 0;
+            int next = 0;
+            for (int r = 0; r < removedCount; r++) {
+                int removed = buffer.getInt((int) removedOffset + r * 4);
+                if (removed < next || removed >= entries.length) {
+                    throw new IOException("corrupt removal " + r + " at " + indexOffset);
+                }
+                for (; next < removed; next++, n++) {
+                    resolvedEntries[n] = entries[next];
+                    resolvedStyles[n] = styles[next];
+                }
+                next = removed + 1;
+            }
+            for (; next < entries.length; next++, n++) {
+                resolvedEntries[n] = entries[next];
+                resolvedStyles[n] = styles[next];
+            }
+            for (int i = 0; i < strokeCount; i++, n++) {
+                int entry = (int) entryOffset + i * INDEX_ENTRY_SIZE;
+                int pos = buffer.getInt(entry);
+                int length = buffer.getInt(entry + 4);
+                int count = buffer.getInt(entry + 8);
+                int style = buffer.getInt(entry + 12);
+                // every point takes at least one byte per coordinate
+                if (pos < HEADER_SIZE || length < 0 || pos + (long) length > indexOffset
+                        || count <= 0 || count > length / 2 || style < 0 || style >= styleCount) {
+                    throw new IOException("corrupt index entry " + i + " at " + indexOffset);
+                }
+                resolvedEntries[n] = entry;
+                resolvedStyles[n] = (int) styleOffset + style * STYLE_SIZE;
+            }
+            entries = resolvedEntries;
+            styles = resolvedStyles;
+        }
+        this.entries = entries;
+        this.styles = styles;
+        long live = 0;
+        for (int entry : entries) {
+            live += buffer.getInt(entry + 4);
+        }
+        liveBytes = live;
+    }
+
+    /**
+     * Finds the newest footer whose index is intact, searching back from the end of the file
+     * past a torn save. Returns its position, or -1.
+     */
+    private static int findFooter(ByteBuffer buffer, CRC32 crc) {
+        for (int p = buffer.capacity() - FOOTER_SIZE; p >= HEADER_SIZE; p--) {
+            if (isFooter(buffer, p, crc)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether there is a footer at p, right after an intact index. */
+    private static boolean isFooter(ByteBuffer buffer, int p, CRC32 crc) {
+        if (p + FOOTER_SIZE > buffer.capacity() || buffer.getInt(p + 12) != FOOTER_MAGIC) {
+            return false;
+        }
+        int offset = buffer.getInt(p);
+        int length = buffer.getInt(p + 4);
+        if (offset < HEADER_SIZE || length < INDEX_HEADER_SIZE || offset + (long) length != p) {
+            return false;
+        }
+        byte[] index = new byte[length];
+        for (int i = 0; i < length; i++) {
+            index[i] = buffer.get(offset + i);
+        }
+        crc.reset();
+        crc.update(index);
+        return (int) crc.getValue() == buffer.getInt(p + 8);
+    }
+
+    /** Maps the file read-only. The mapping stays valid after the file is replaced. */
+    public static PageFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new PageFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** The page content version the file was written from. */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getStrokeCount() {
+        return entries.length;
+    }
+
+    /** Bytes the save that returned this file wrote, whether appended or in a rewrite. */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /** Returns lazily decoded strokes, in drawing order. */
+    public List<Stroke> strokes() {
+        ArrayList<Stroke> strokes = new ArrayList<Stroke>(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            int entry = entries[i];
+            int style = styles[i];
+            strokes.add(new Stroke(buffer.getInt(style), buffer.getFloat(style + 4),
+                    buffer.getFloat(entry + 16), buffer.getFloat(entry + 20),
+                    buffer.getFloat(entry + 24), buffer.getFloat(entry + 28), this, i));
+        }
+        return strokes;
+    }
+
+    @Override
+    public float[] decode(int index) {
+        int entry = entries[index];
+        int pos = buffer.getInt(entry);
+        int end = pos + buffer.getInt(entry + 4);
+        int count = buffer.getInt(entry + 8);
+        float[] points = new float[count * 2];
+        int qx = 0, qy = 0;
+        for (int i = 0; i < count; i++) {
+            // absolute reads only, so strokes can be decoded from several threads at once
+            int value = 0, shift = 0, b;
+            do {
+                if (pos >= end || shift > 28) {
+                    return corrupt(index, points, i);
+                }
+                b = buffer.get(pos++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            qx += (value >>> 1) ^ -(value & 1);
+            value = 0;
+            shift = 0;
+            do {
+                if (pos >= end || shift > 28) {
+                    return corrupt(index, points, i);
+                }
+                b = buffer.get(pos++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            qy += (value >>> 1) ^ -(value & 1);
+            points[i * 2] = qx * QUANTUM;
+            points[i * 2 + 1] = qy * QUANTUM;
+        }
+        return points;
+    }
+
+    private float[] corrupt(int index, float[] points, int decoded) {
+        Log.e(TAG, "point data of stroke " + index + " is corrupt after " + decoded + " points");
+        if (decoded > 0) {
+            return Arrays.copyOf(points, decoded * 2);
+        }
+        // a stroke needs a point; put it in the middle of the bounds from the index
+        int entry = entries[index];
+        return new float[] {
+                (buffer.getFloat(entry + 16) + buffer.getFloat(entry + 24)) / 2,
+                (buffer.getFloat(entry + 20) + buffer.getFloat(entry + 28)) / 2};
+    }
+
+    /** Position of stroke in this file's stroke list, or -1 if this file does not know it. */
+    private int indexOf(Stroke stroke) {
+        synchronized (known) {
+            Integer index = known.get(stroke);
+            if (index != null) {
+                return index;
+            }
+        }
+        return stroke.getOrigin() == this ? stroke.getOriginIndex() : -1;
+    }
+
+    /**
+     * Saves strokes to file, appending only the points of strokes that are not in it yet. The
+     * strokes the file already holds are found through previous, the file returned by the last
+     * save of the page, and through the file each stroke was loaded from; either only counts
+     * while the file still has the file id it had then.
+     *
+     * @param previous The file returned by the last save of this page, or null.
+     * @return The file as written, to pass as previous to the next save of the page.
+     */
+    public static PageFile write(List<Stroke> strokes, long version, File file,
+                                 PageFile previous) throws IOException {
+        PageFile current = null;
+        if (file.exists()) {
+            try {
+                current = open(file);
+            } catch (IOException e) {
+                Log.e(TAG, "rewriting unreadable " + file, e);
+            }
+        }
+
+        // where the points of each stroke are, or null for new data to encode, and where the
+        // stroke is in the stroke list of the file as it is, or -1
+        int n = strokes.size();
+        PageFile[] from = new PageFile[n];
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        int[] counts = new int[n];
+        int[] listed = new int[n];
+        HashMap<Integer, Integer> byOffset = null;
+        VarintBuffer fresh = new VarintBuffer();
+        long reusedBytes = 0;
+        for (int i = 0; i < n; i++) {
+            Stroke s = strokes.get(i);
+            listed[i] = -1;
+            if (current != null) {
+                from[i] = locate(s, previous, current);
+            }
+            if (from[i] != null) {
+                int entry = from[i].entries[from[i].indexOf(s)];
+                offsets[i] = from[i].buffer.getInt(entry);
+                lengths[i] = from[i].buffer.getInt(entry + 4);
+                counts[i] = from[i].buffer.getInt(entry + 8);
+                reusedBytes += lengths[i];
+                if (byOffset == null) {
+                    byOffset = current.indexesByOffset();
+                }
+                Integer index = byOffset.get(offsets[i]);
+                if (index != null) {
+                    listed[i] = index;
+                }
+            } else {
+                offsets[i] = fresh.size();
+                counts[i] = s.getPointCount();
+                int qx = 0, qy = 0;
+                for (int p = 0; p < counts[i]; p++) {
+                    int x = Math.round(s.getX(p) / QUANTUM);
+                    int y = Math.round(s.getY(p) / QUANTUM);
+                    fresh.putZigzag(x - qx);
+                    fresh.putZigzag(y - qy);
+                    qx = x;
+                    qy = y;
+                }
+                lengths[i] = fresh.size() - offsets[i];
+            }
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        long garbage = current == null ? 0
+                : current.end - HEADER_SIZE - reusedBytes - current.indexBytes;
+        long written;
+        if (current != null && garbage <= Math.max(MIN_GARBAGE, reusedBytes + fresh.size())) {
+            // the strokes at the start of the page that keep their order from the file's list
+            // stay listed there; the rest of the file's list is removed
+            int kept = 0;
+            while (kept < n && listed[kept] >= 0
+                    && (kept == 0 || listed[kept] > listed[kept - 1])) {
+                kept++;
+            }
+            int[] removed = new int[current.entries.length - kept];
+            for (int i = 0, k = 0, r = 0; i < current.entries.length; i++) {
+                if (k < kept && listed[k] == i) {
+                    k++;
+                } else {
+                    removed[r++] = i;
+                }
+            }
+            long incremental = INDEX_HEADER_SIZE + removed.length * 4L
+                    + (n - kept) * (long) (STYLE_SIZE + INDEX_ENTRY_SIZE) + FOOTER_SIZE;
+            int base = current.end - FOOTER_SIZE;
+            if (current.incrementalBytes + incremental
+                    > INDEX_HEADER_SIZE + n * (long) INDEX_ENTRY_SIZE + FOOTER_SIZE) {
+                base = NO_BASE;
+                kept = 0;
+                removed = new int[0];
+            }
+            written = append(strokes, version, file, current, base, removed, kept, from,
+                    offsets, lengths, counts, fresh);
+        } else {
+            written = rewrite(strokes, version, file, from, offsets, lengths, counts, fresh);
+        }
+
+        PageFile result = open(file);
+        result.writtenBytes = written;
+        synchronized (result.known) {
+            for (int i = 0; i < n; i++) {
+                result.known.put(strokes.get(i), i);
+            }
+        }
+        return result;
+    }
+
+    /** Position in the stroke list of the stroke whose points are at each data offset. */
+    private HashMap<Integer, Integer> indexesByOffset() {
+        HashMap<Integer, Integer> byOffset = new HashMap<Integer, Integer>(entries.length * 2);
+        for (int i = 0; i < entries.length; i++) {
+            byOffset.put(buffer.getInt(entries[i]), i);
+        }
+        return byOffset;
+    }
+
+    /** The file that knows where the points of stroke are in current, or null. */
+    private static PageFile locate(Stroke stroke, PageFile previous, PageFile current) {
+        PageFile origin = stroke.getOrigin() instanceof PageFile
+                ? (PageFile) stroke.getOrigin() : null;
+        PageFile[] candidates = {previous, origin};
+        for (PageFile candidate : candidates) {
+            if (candidate == null || candidate.fileId != current.fileId) {
+                continue;
+            }
+            int index = candidate.indexOf(stroke);
+            if (index >= 0) {
+                int e = candidate.entries[index];
+                // data is never moved while the id stays, but it must be in the intact part
+                if (candidate.buffer.getInt(e) + (long) candidate.buffer.getInt(e + 4)
+                        <= current.end) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long append(List<Stroke> strokes, long version, File file, PageFile current,
+                               int base, int[] removed, int first, PageFile[] from,
+                               int[] offsets, int[] lengths, int[] counts, VarintBuffer fresh)
+            throws IOException {
+        for (int i = 0; i < strokes.size(); i++) {
+            if (from[i] == null) {
+                offsets[i] += current.end;
+            }
+        }
+        int indexOffset = current.end + fresh.size();
+        ByteBuffer index = index(strokes, version, base, removed, first, offsets, lengths,
+                counts);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // anything after the newest intact save is a torn one
+            channel.truncate(current.end);
+            channel.position(current.end);
+            writeFully(channel, ByteBuffer.wrap(fresh.array(), 0, fresh.size()), index);
+            channel.force(false);
+            // the footer only goes down once what it points at is on disk
+            writeFully(channel, footer(indexOffset, index));
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        return fresh.size() + index.capacity() + FOOTER_SIZE;
+    }
+
+    private static long rewrite(List<Stroke> strokes, long version, File file,
+                                PageFile[] from, int[] offsets, int[] lengths, int[] counts,
+                                VarintBuffer fresh) throws IOException {
+        VarintBuffer data = new VarintBuffer();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(FORMAT_VERSION).putShort((short) 0)
+                .putLong(fileIds.nextLong());
+        data.putBytes(header.array(), 0, HEADER_SIZE);
+        for (int i = 0; i < strokes.size(); i++) {
+            int start = data.size();
+            if (from[i] != null) {
+                // varints do not depend on where they are, so the bytes are copied as they are
+                data.putBytes(from[i].buffer, offsets[i], lengths[i]);
+            } else {
+                data.putBytes(fresh.array(), offsets[i], lengths[i]);
+            }
+            offsets[i] = start;
+        }
+        int indexOffset = data.size();
+        ByteBuffer index = index(strokes, version, NO_BASE, new int[0], 0, offsets, lengths,
+                counts);
+        ByteBuffer footer = footer(indexOffset, index);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            writeFully(out.getChannel(), ByteBuffer.wrap(data.array(), 0, data.size()), index,
+                    footer);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+        return data.size() + index.capacity() + FOOTER_SIZE;
+    }
+
+    /**
+     * Builds an index on top of the one whose footer is at base, or a full one for
+     * {@link #NO_BASE}, listing the strokes from first on.
+     */
+    private static ByteBuffer index(List<Stroke> strokes, long version, int base, int[] removed,
+                                    int first, int[] offsets, int[] lengths, int[] counts) {
+        HashMap<Long, Integer> styleIds = new HashMap<Long, Integer>();
+        ArrayList<Long> styles = new ArrayList<Long>();
+        int[] strokeStyles = new int[strokes.size()];
+        for (int i = first; i < strokes.size(); i++) {
+            Stroke s = strokes.get(i);
+            Long style = ((long) s.getColor() << 32)
+                    | (Float.floatToIntBits(s.getWidth()) & 0xffffffffL);
+            Integer id = styleIds.get(style);
+            if (id == null) {
+                id = styles.size();
+                styleIds.put(style, id);
+                styles.add(style);
+            }
+            strokeStyles[i] = id;
+        }
+
+        int listed = strokes.size() - first;
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + removed.length * 4
+                + styles.size() * STYLE_SIZE + listed * INDEX_ENTRY_SIZE);
+        index.putLong(version).putInt(base).putInt(removed.length).putInt(styles.size())
+                .putInt(listed);
+        for (int r : removed) {
+            index.putInt(r);
+        }
+        for (int i = 0; i < styles.size(); i++) {
+            long style = styles.get(i);
+            index.putInt((int) (style >>> 32)).putInt((int) style);
+        }
+        for (int i = first; i < strokes.size(); i++) {
+            Stroke s = strokes.get(i);
+            index.putInt(offsets[i]).putInt(lengths[i]).putInt(counts[i]).putInt(strokeStyles[i])
+                    .putFloat(s.getLeft()).putFloat(s.getTop())
+                    .putFloat(s.getRight()).putFloat(s.getBottom());
+        }
+        index.flip();
+        return index;
+    }
+
+    private static ByteBuffer footer(int indexOffset, ByteBuffer index) {
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.capacity());
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putInt(indexOffset).putInt(index.capacity()).putInt((int) crc.getValue())
+                .putInt(FOOTER_MAGIC);
+        footer.flip();
+        return footer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers)
+            throws IOException {
+        long remaining = 0;
+        for (ByteBuffer b : buffers) {
+            remaining += b.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    static class VarintBuffer {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        void putZigzag(int value) {
+            putVarint((value << 1) ^ (value >> 31));
+        }
+
+        /** Writes value as an unsigned varint. */
+        void putVarint(int value) {
+            ensure(5);
+            int v = value;
+            while ((v & ~0x7f) != 0) {
+                bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        void putBytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, bytes, size, length);
+            size += length;
+        }
+
+        /** Copies length bytes from src at offset, with absolute reads. */
+        void putBytes(ByteBuffer src, int offset, int length) {
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                bytes[size++] = src.get(offset + i);
+            }
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        /** Writes value big-endian, as {@link ByteBuffer} would. */
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+    }
+}
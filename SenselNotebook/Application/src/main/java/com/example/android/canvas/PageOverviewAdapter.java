@@ -0,0 +1,74 @@
+package com.example.android.canvas;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+
+/**
+ * Shows a thumbnail of every page of a notebook, for example in a grid the user picks a page
+ * from. Thumbnails come from a {@link ThumbnailService}; each page is asked for once while the
+ * adapter is in use, and the grid is refreshed as they arrive.
+ */
+public class PageOverviewAdapter extends BaseAdapter implements ThumbnailService.Callback {
+
+    private final Context context;
+    private final ThumbnailService thumbnails;
+    private final int pageCount;
+    private final SparseArray<Bitmap> images = new SparseArray<Bitmap>();
+    private final SparseBooleanArray requested = new SparseBooleanArray();
+
+    public PageOverviewAdapter(Context context, ThumbnailService thumbnails, int pageCount) {
+        this.context = context;
+        this.thumbnails = thumbnails;
+        this.pageCount = pageCount;
+    }
+
+    /** Stops waiting for thumbnails, once the overview is closed. */
+    public void close() {
+        thumbnails.cancelAll();
+    }
+
+    @Override
+    public int getCount() {
+        return pageCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return images.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (!requested.get(position)) {
+            requested.put(position, true);
+            Bitmap cached = thumbnails.request(position, this);
+            if (cached != null && images.get(position) == null) {
+                images.put(position, cached);
+            }
+        }
+        ImageView view = convertView instanceof ImageView
+                ? (ImageView) convertView : new ImageView(context);
+        view.setAdjustViewBounds(true);
+        view.setBackgroundColor(Color.WHITE);
+        view.setImageBitmap(images.get(position));
+        return view;
+    }
+
+    @Override
+    public void onThumbnail(int index, Bitmap thumbnail) {
+        images.put(index, thumbnail);
+        notifyDataSetChanged();
+    }
+}
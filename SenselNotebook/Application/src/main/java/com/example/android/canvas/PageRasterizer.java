@@ -0,0 +1,45 @@
+package com.example.android.canvas;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders whole-page images (saved JPEGs, page previews, thumbnails) with a
+ * {@link TileRasterizer}. From API 21, where fork/join is available, the tiles are spread over
+ * a pool with one thread per core; on older versions they are rendered on the calling thread.
+ */
+public class PageRasterizer {
+
+    private PageRasterizer() {
+    }
+
+    /** Only loaded from API 21, so older versions never resolve the fork/join classes. */
+    private static class Pool {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+
+        static void run(TileRasterizer job) {
+            TileRasterizer.Parallel.run(job, POOL);
+        }
+    }
+
+    /**
+     * Draws strokes over a background colour into a new bitmap of the given size, seen through
+     * a viewport with the given scale and origin.
+     */
+    public static Bitmap render(Stroke[] strokes, int width, int height, float scale,
+                                float originX, float originY, int background) {
+        int[] argb = new int[width * height];
+        Arrays.fill(argb, background);
+        TileRasterizer job = new TileRasterizer(strokes, argb, width, height, scale, originX,
+                originY, TileRasterizer.DEFAULT_TILE_SIZE);
+        if (Build.VERSION.SDK_INT >= 21) { // Lollipop
+            Pool.run(job);
+        } else {
+            job.run();
+        }
+        return Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+    }
+}
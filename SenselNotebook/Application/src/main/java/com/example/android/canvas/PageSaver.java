@@ -0,0 +1,204 @@
+package com.example.android.canvas;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.bluetoothchat.TraceEvents;
+import com.example.android.common.logger.TraceLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves pages on a background thread, as a {@link PageFile}, and optionally as a JPEG image of
+ * the visible area. The caller hands over a snapshot of the strokes (committed strokes are
+ * never modified, so copying the list is enough); encoding, rendering and file I/O all happen
+ * off the UI thread and the result is reported on the UI thread through a {@link Callback}.
+ *
+ * <p>The saver remembers the file each of the last few saved pages was written as, so the next
+ * save of such a page appends only the strokes added since.</p>
+ *
+ * <p>Saves are coalesced per page file: if several are requested for the same page while the
+ * worker is busy, only the newest snapshot of it is written once the worker is free. The
+ * images the skipped saves asked for are still written, each from its own snapshot, and every
+ * caller is told the outcome, oldest first.</p>
+ */
+public class PageSaver {
+    private static final String TAG = "PageSaver";
+    // pages whose written file is remembered for the next save
+    private static final int REMEMBERED_PAGES = 4;
+
+    /** Receives the outcome of a save on the UI thread. */
+    public interface Callback {
+        void onSaved(File pageFile, File imageFile);
+
+        void onSaveFailed(File pageFile, Exception e);
+    }
+
+    private static class Request {
+        final Stroke[] strokes;
+        final long version;
+        final int width, height;
+        final float scale, originX, originY;
+        final File pageFile, imageFile;
+        final Callback callback;
+        // older requests for the same page that this one replaced, oldest first
+        final List<Request> superseded = new ArrayList<Request>();
+
+        Request(Stroke[] strokes, long version, int width, int height, float scale,
+                float originX, float originY, File pageFile, File imageFile, Callback callback) {
+            this.strokes = strokes;
+            this.version = version;
+            this.width = width;
+            this.height = height;
+            this.scale = scale;
+            this.originX = originX;
+            this.originY = originY;
+            this.pageFile = pageFile;
+            this.imageFile = imageFile;
+            this.callback = callback;
+        }
+    }
+
+    // a single worker thread that goes away while there is nothing to save
+    private final ExecutorService worker = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    // newest unsaved request per page file, oldest first; guarded by itself
+    private final LinkedHashMap<File, Request> pending = new LinkedHashMap<File, Request>();
+    private boolean scheduled;
+    // the file each recently saved page was written as; only used by the worker
+    private final LinkedHashMap<File, PageFile> written =
+            new LinkedHashMap<File, PageFile>(REMEMBERED_PAGES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, PageFile> eldest) {
+                    return size() > REMEMBERED_PAGES;
+                }
+            };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Request request;
+                synchronized (pending) {
+                    Iterator<Request> i = pending.values().iterator();
+                    if (!i.hasNext()) {
+                        scheduled = false;
+                        return;
+                    }
+                    request = i.next();
+                    i.remove();
+                }
+                write(request);
+            }
+        }
+    };
+
+    /**
+     * Queues a save of the page to pageFile. If imageFile is not null, an image of the part of
+     * the page seen through a viewport of the given size is written too. Returns immediately.
+     */
+    public void save(Page page, int width, int height, Viewport viewport, File pageFile,
+                     File imageFile, Callback callback) {
+        List<Stroke> strokes = page.getStrokes();
+        Request request = new Request(strokes.toArray(new Stroke[strokes.size()]),
+                page.getVersion(), width, height, viewport.getScale(), viewport.getOriginX(),
+                viewport.getOriginY(), pageFile, imageFile, callback);
+        synchronized (pending) {
+            Request replaced = pending.put(pageFile, request);
+            if (replaced != null) {
+                Log.v(TAG, "coalesced with a pending save");
+                request.superseded.addAll(replaced.superseded);
+                replaced.superseded.clear();
+                request.superseded.add(replaced);
+            }
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        worker.execute(drain);
+    }
+
+    private void write(final Request request) {
+        long start = System.nanoTime();
+        try {
+            PageFile saved;
+            try {
+                saved = PageFile.write(Arrays.asList(request.strokes), request.version,
+                        request.pageFile, written.get(request.pageFile));
+            } catch (IOException e) {
+                // the file may not be what the remembered one says any more
+                written.remove(request.pageFile);
+                throw e;
+            }
+            written.put(request.pageFile, saved);
+            Log.v(TAG, saved.getWrittenBytes() + " bytes saved at " + request.pageFile.getPath());
+            for (Request skipped : request.superseded) {
+                if (skipped.imageFile != null) {
+                    writeImage(skipped);
+                }
+            }
+            if (request.imageFile != null) {
+                writeImage(request);
+            }
+            TraceLog.trace(TraceEvents.PAGE_SAVE, request.strokes.length,
+                    (int) ((System.nanoTime() - start) / 1000), (int) saved.getWrittenBytes(), 0);
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request skipped : request.superseded) {
+                        skipped.callback.onSaved(skipped.pageFile, skipped.imageFile);
+                    }
+                    request.callback.onSaved(request.pageFile, request.imageFile);
+                }
+            });
+        } catch (final Exception e) {
+            Log.e(TAG, "save failed", e);
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Request skipped : request.superseded) {
+                        skipped.callback.onSaveFailed(skipped.pageFile, e);
+                    }
+                    request.callback.onSaveFailed(request.pageFile, e);
+                }
+            });
+        }
+    }
+
+    private void writeImage(Request request) throws IOException {
+        Bitmap bitmap = null;
+        FileOutputStream fos = null;
+        try {
+            bitmap = PageRasterizer.render(request.strokes, request.width, request.height,
+                    request.scale, request.originX, request.originY, Color.WHITE);
+            fos = new FileOutputStream(request.imageFile);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+            fos.flush();
+            Log.v(TAG, "image saved at " + request.imageFile.getPath());
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+}
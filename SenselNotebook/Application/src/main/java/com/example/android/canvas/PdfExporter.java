@@ -0,0 +1,208 @@
+package com.example.android.canvas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal PDF writer for vector pages of ink.
+ *
+ * <p>Each page becomes one compressed content stream of stroked paths, on a page sized to the
+ * area {@link NotebookExporter#pageArea} gives for its strokes. Encoding a page with
+ * {@link #encodePage} is independent of the document, so pages can be encoded on several
+ * threads; {@link #addPage} then appends them to the output in order. Only the byte offsets of
+ * the objects are kept until {@link #finish} writes the page tree and cross-reference table,
+ * so memory does not grow with the page content of the document.</p>
+ *
+ * <pre>
+ * 1          catalog
+ * 2          page tree, written last
+ * 3, 4 ...   content stream and page object for each page
+ * </pre>
+ */
+public class PdfExporter {
+
+    // single bytes for every char, so the binary marker comment comes out as written
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    // PDF user space is in points; page units are millimetres
+    private static final float POINTS_PER_UNIT = 72 / 25.4f;
+
+    private final OutputStream out;
+    private final ArrayList<Long> offsets = new ArrayList<Long>();
+    private final ArrayList<Integer> pageObjects = new ArrayList<Integer>();
+    private long position;
+
+    /** A page's compressed content stream, and the page's size in page units. */
+    public static final class EncodedPage {
+        final byte[] content;
+        final float width, height;
+
+        EncodedPage(byte[] content, float width, float height) {
+            this.content = content;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** Starts a document. */
+    public PdfExporter(OutputStream out) throws IOException {
+        this.out = out;
+        // the comment with high bytes marks the file as binary for transfer programs
+        write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        beginObject(1);
+        write("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        // the page tree's offset is only known at the end
+        offsets.add(0L);
+    }
+
+    /**
+     * Encodes strokes, in drawing order, as a compressed content stream for a page covering
+     * them. Safe to call from any thread.
+     */
+    public static EncodedPage encodePage(List<Stroke> strokes) {
+        float[] area = NotebookExporter.pageArea(strokes);
+        StringBuilder content = new StringBuilder(4096);
+        // flip to page coordinates: y grows downwards, in millimetres, from the area's corner
+        NotebookExporter.appendNumber(content, POINTS_PER_UNIT);
+        content.append(" 0 0 ");
+        NotebookExporter.appendNumber(content, -POINTS_PER_UNIT);
+        content.append(' ');
+        NotebookExporter.appendNumber(content, -area[0] * POINTS_PER_UNIT);
+        content.append(' ');
+        NotebookExporter.appendNumber(content, area[3] * POINTS_PER_UNIT);
+        content.append(" cm 1 J 1 j\n");
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        for (int i = 0; i < strokes.size(); i++) {
+            appendStroke(content, strokes.get(i));
+            if (content.length() > 16384 || i == strokes.size() - 1) {
+                // compress as we go so a page never holds all of its text at once
+                deflater.setInput(content.toString().getBytes(LATIN_1));
+                content.setLength(0);
+                while (!deflater.needsInput()) {
+                    compressed.write(chunk, 0, deflater.deflate(chunk));
+                }
+            }
+        }
+        if (content.length() > 0) {
+            deflater.setInput(content.toString().getBytes(LATIN_1));
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            compressed.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+        return new EncodedPage(compressed.toByteArray(), area[2] - area[0], area[3] - area[1]);
+    }
+
+    private static void appendStroke(StringBuilder out, Stroke stroke) {
+        int color = stroke.getColor();
+        appendComponent(out, (color >> 16) & 0xff);
+        appendComponent(out, (color >> 8) & 0xff);
+        appendComponent(out, color & 0xff);
+        out.append("RG ");
+        NotebookExporter.appendNumber(out, stroke.getWidth());
+        out.append(" w\n");
+        int n = stroke.getPointCount();
+        float x0 = stroke.getX(0), y0 = stroke.getY(0);
+        appendPoint(out, x0, y0);
+        out.append("m\n");
+        if (n == 1) {
+            // a zero-length segment, which the round cap turns into a dot
+            appendPoint(out, x0, y0);
+            out.append("l\n");
+        } else {
+            // the quadratic smoothing StrokeRenderer uses, raised to cubics
+            for (int i = 1; i < n; i++) {
+                float qx = stroke.getX(i - 1), qy = stroke.getY(i - 1);
+                float x1 = (stroke.getX(i) + qx) / 2, y1 = (stroke.getY(i) + qy) / 2;
+                appendPoint(out, x0 + (qx - x0) * 2 / 3, y0 + (qy - y0) * 2 / 3);
+                appendPoint(out, x1 + (qx - x1) * 2 / 3, y1 + (qy - y1) * 2 / 3);
+                appendPoint(out, x1, y1);
+                out.append("c\n");
+                x0 = x1;
+                y0 = y1;
+            }
+            appendPoint(out, stroke.getX(n - 1), stroke.getY(n - 1));
+            out.append("l\n");
+        }
+        out.append("S\n");
+    }
+
+    private static void appendComponent(StringBuilder out, int value) {
+        NotebookExporter.appendNumber(out, value / 255f);
+        out.append(' ');
+    }
+
+    private static void appendPoint(StringBuilder out, float x, float y) {
+        NotebookExporter.appendNumber(out, x);
+        out.append(' ');
+        NotebookExporter.appendNumber(out, y);
+        out.append(' ');
+    }
+
+    /** Appends a page encoded by {@link #encodePage}. */
+    public void addPage(EncodedPage encoded) throws IOException {
+        byte[] content = encoded.content;
+        int contentObject = offsets.size() + 1;
+        beginObject(contentObject);
+        write("<< /Length " + content.length + " /Filter /FlateDecode >>\nstream\n");
+        out.write(content);
+        position += content.length;
+        write("\nendstream\nendobj\n");
+
+        int pageObject = contentObject + 1;
+        beginObject(pageObject);
+        StringBuilder page = new StringBuilder("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 ");
+        NotebookExporter.appendNumber(page, encoded.width * POINTS_PER_UNIT);
+        page.append(' ');
+        NotebookExporter.appendNumber(page, encoded.height * POINTS_PER_UNIT);
+        page.append("] /Contents ").append(contentObject).append(" 0 R >>\nendobj\n");
+        write(page.toString());
+        pageObjects.add(pageObject);
+    }
+
+    /** Writes the page tree and cross-reference table. Does not close the stream. */
+    public void finish() throws IOException {
+        offsets.set(1, position);
+        StringBuilder tree = new StringBuilder("2 0 obj\n<< /Type /Pages /Kids [");
+        for (int i = 0; i < pageObjects.size(); i++) {
+            tree.append(i == 0 ? "" : " ").append(pageObjects.get(i)).append(" 0 R");
+        }
+        tree.append("] /Count ").append(pageObjects.size()).append(" >>\nendobj\n");
+        write(tree.toString());
+
+        long xref = position;
+        StringBuilder table = new StringBuilder(32 + offsets.size() * 20);
+        table.append("xref\n0 ").append(offsets.size() + 1).append('\n')
+                .append("0000000000 65535 f \n");
+        for (int i = 0; i < offsets.size(); i++) {
+            String offset = Long.toString(offsets.get(i));
+            for (int pad = offset.length(); pad < 10; pad++) {
+                table.append('0');
+            }
+            table.append(offset).append(" 00000 n \n");
+        }
+        table.append("trailer\n<< /Size ").append(offsets.size() + 1)
+                .append(" /Root 1 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        write(table.toString());
+        out.flush();
+    }
+
+    private void beginObject(int number) throws IOException {
+        offsets.add(position);
+        write(number + " 0 obj\n");
+    }
+
+    private void write(String s) throws IOException {
+        byte[] bytes = s.getBytes(LATIN_1);
+        out.write(bytes);
+        position += bytes.length;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.canvas;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Desktop benchmark for {@link TileRasterizer}: renders a synthetic full page sequentially and
+ * on fork/join pools of increasing size, and prints the time per frame and the speed-up.
+ *
+ * <pre>
+ * java -cp classes com.example.android.canvas.RasterBenchmark [strokes] [width] [height]
+ * </pre>
+ */
+public class RasterBenchmark {
+
+    private static final int WARMUP_FRAMES = 5;
+    private static final int FRAMES = 20;
+
+    public static void main(String[] args) {
+        int strokeCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int width = args.length > 1 ? Integer.parseInt(args[1]) : 1200;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 2300;
+        float scale = Math.min(width / SenselPad.WIDTH, height / SenselPad.HEIGHT);
+        Stroke[] strokes = randomStrokes(strokeCount, new Random(42));
+        int[] argb = new int[width * height];
+
+        System.out.println(strokeCount + " strokes, " + width + "x" + height + " pixels");
+        double sequential = time(strokes, argb, width, height, scale, null);
+        System.out.printf("sequential  %8.2f ms%n", sequential);
+        int cores = Runtime.getRuntime().availableProcessors();
+        // 1, 2, 4 ... threads, ending with one per core
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            double parallel = time(strokes, argb, width, height, scale, pool);
+            System.out.printf("%2d threads  %8.2f ms  x%.2f%n", threads, parallel,
+                    sequential / parallel);
+            pool.shutdown();
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+
+    /** Average milliseconds per frame. */
+    private static double time(Stroke[] strokes, int[] argb, int width, int height, float scale,
+                               ForkJoinPool pool) {
+        long total = 0;
+        for (int frame = -WARMUP_FRAMES; frame < FRAMES; frame++) {
+            Arrays.fill(argb, 0xffffffff);
+            long start = System.nanoTime();
+            TileRasterizer job = new TileRasterizer(strokes, argb, width, height, scale, 0, 0,
+                    TileRasterizer.DEFAULT_TILE_SIZE);
+            if (pool == null) {
+                job.run();
+            } else {
+                TileRasterizer.Parallel.run(job, pool);
+            }
+            if (frame >= 0) {
+                total += System.nanoTime() - start;
+            }
+        }
+        return total / 1e6 / FRAMES;
+    }
+
+    /** Handwriting-like random walks across the pad. */
+    private static Stroke[] randomStrokes(int count, Random random) {
+        Stroke[] strokes = new Stroke[count];
+        for (int i = 0; i < count; i++) {
+            float x = random.nextFloat() * SenselPad.WIDTH;
+            float y = random.nextFloat() * SenselPad.HEIGHT;
+            double angle = random.nextDouble() * Math.PI * 2;
+            Stroke stroke = new Stroke(0xff000000 | random.nextInt(0xffffff), 0.5f, x, y);
+            int points = 10 + random.nextInt(90);
+            for (int p = 0; p < points; p++) {
+                angle += random.nextGaussian() * 0.3;
+                x += (float) Math.cos(angle) * 0.4f;
+                y += (float) Math.sin(angle) * 0.4f;
+                stroke.addPoint(x, y);
+            }
+            stroke.finish();
+            strokes[i] = stroke;
+        }
+        return strokes;
+    }
+}
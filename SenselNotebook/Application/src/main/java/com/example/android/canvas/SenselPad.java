@@ -0,0 +1,16 @@
+package com.example.android.canvas;
+
+/**
+ * Size of the Sensel pad's sensing area. Page units are pad millimetres, so this is also the
+ * size of a page. The pad is 230mm x 120mm and is used in portrait.
+ */
+public final class SenselPad {
+
+    /** Width of the pad in portrait, in mm. */
+    public static final float WIDTH = 120;
+    /** Height of the pad in portrait, in mm. */
+    public static final float HEIGHT = 230;
+
+    private SenselPad() {
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.android.canvas;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single ink stroke: its sample points, colour, pen width and a bounding box that already
+ * accounts for half the pen width, so it can be used directly for culling and hit-testing.
+ *
+ * <p>Points are kept in one interleaved float array (x0, y0, x1, y1, ...) rather than as
+ * {@link android.graphics.Point} objects, and the class has no Android dependencies so it can be
+ * shared with code that runs off the UI thread.</p>
+ */
+public class Stroke {
+
+    /** Supplies the points of strokes that are loaded lazily, e.g. from a {@link PageFile}. */
+    public interface Source {
+        /** Returns the interleaved points of the stroke at the given index. */
+        float[] decode(int index);
+    }
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    // Maximum deviation, in page units, of each simplified level of detail from the full stroke.
+    private static final float[] LOD_TOLERANCES = {0.125f, 0.5f, 2f};
+
+    // Strokes are created in drawing order, so the id doubles as the z-order.
+    private final int id;
+    private final int color;
+    private final float width;
+
+    private float[] points;
+    private int pointCount;
+    // simplified copies of points, one per LOD_TOLERANCES entry, built by finish()
+    private float[][] lods;
+
+    private float left, top, right, bottom;
+
+    // Set until the points of a lazily loaded stroke have been decoded.
+    private volatile Source source;
+    // Where a lazily loaded stroke came from, kept after decoding so that a save can tell its
+    // points are already in the file.
+    private final Source origin;
+    private final int sourceIndex;
+
+    // Scratch value used by StrokeIndex to de-duplicate query results across grid cells.
+    int queryStamp;
+
+    public Stroke(int color, float width, float x, float y) {
+        this.id = nextId.getAndIncrement();
+        this.color = color;
+        this.width = width;
+        points = new float[16];
+        float half = width / 2;
+        left = x - half;
+        top = y - half;
+        right = x + half;
+        bottom = y + half;
+        origin = null;
+        sourceIndex = -1;
+        addPoint(x, y);
+    }
+
+    /**
+     * Creates a committed stroke whose points are only decoded from source when they are
+     * first needed. Until then it costs no more than its bounds.
+     */
+    public Stroke(int color, float width, float left, float top, float right, float bottom,
+                  Source source, int sourceIndex) {
+        this.id = nextId.getAndIncrement();
+        this.color = color;
+        this.width = width;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.source = source;
+        this.origin = source;
+        this.sourceIndex = sourceIndex;
+    }
+
+    private void ensureLoaded() {
+        if (source != null) {
+            load();
+        }
+    }
+
+    private synchronized void load() {
+        Source from = source;
+        if (from == null) {
+            return;
+        }
+        points = from.decode(sourceIndex);
+        pointCount = points.length / 2;
+        buildLods();
+        // publishing source = null makes the points visible to other threads
+        source = null;
+    }
+
+    /** The source a lazily loaded stroke was created from, even once decoded, or null. */
+    public Source getOrigin() {
+        return origin;
+    }
+
+    /** Index of the stroke in {@link #getOrigin()}. */
+    public int getOriginIndex() {
+        return sourceIndex;
+    }
+
+    /** True once the points are in memory. */
+    public boolean isLoaded() {
+        return source == null;
+    }
+
+    public void addPoint(float x, float y) {
+        if (pointCount * 2 == points.length) {
+            float[] grown = new float[points.length * 2];
+            System.arraycopy(points, 0, grown, 0, points.length);
+            points = grown;
+        }
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        pointCount++;
+
+        float half = width / 2;
+        left = Math.min(left, x - half);
+        top = Math.min(top, y - half);
+        right = Math.max(right, x + half);
+        bottom = Math.max(bottom, y + half);
+    }
+
+    /**
+     * Called once the stroke is committed: trims the point storage and precomputes the
+     * simplified levels of detail used when the page is viewed zoomed out.
+     */
+    public void finish() {
+        if (points.length != pointCount * 2) {
+            points = Arrays.copyOf(points, pointCount * 2);
+        }
+        buildLods();
+    }
+
+    private void buildLods() {
+        lods = new float[LOD_TOLERANCES.length][];
+        float[] previous = points;
+        for (int i = 0; i < LOD_TOLERANCES.length; i++) {
+            // a level that could not drop anything more shares the previous level's array
+            float[] simplified = StrokeSimplifier.simplify(points, LOD_TOLERANCES[i]);
+            lods[i] = simplified.length == previous.length ? previous : simplified;
+            previous = lods[i];
+        }
+    }
+
+    /**
+     * Returns the coarsest version of this stroke whose error stays under one pixel when drawn
+     * at the given scale (pixels per page unit), as interleaved x, y coordinates.
+     */
+    public float[] getPoints(float scale) {
+        ensureLoaded();
+        if (lods == null) {
+            return Arrays.copyOf(points, pointCount * 2);
+        }
+        for (int i = lods.length - 1; i >= 0; i--) {
+            if (LOD_TOLERANCES[i] * scale < 1) {
+                return lods[i];
+            }
+        }
+        return points;
+    }
+
+    /** Approximate heap footprint of this stroke and its levels of detail. */
+    public int sizeBytes() {
+        if (!isLoaded()) {
+            return 64;
+        }
+        int size = 64 + points.length * 4;
+        if (lods != null) {
+            float[] previous = points;
+            for (int i = 0; i < lods.length; i++) {
+                if (lods[i] != previous) {
+                    size += lods[i].length * 4;
+                }
+                previous = lods[i];
+            }
+        }
+        return size;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public float getWidth() {
+        return width;
+    }
+
+    public int getPointCount() {
+        ensureLoaded();
+        return pointCount;
+    }
+
+    public float getX(int i) {
+        ensureLoaded();
+        return points[i * 2];
+    }
+
+    public float getY(int i) {
+        ensureLoaded();
+        return points[i * 2 + 1];
+    }
+
+    /** A stroke that never moved from where it started is drawn as a dot. */
+    public boolean isPoint() {
+        ensureLoaded();
+        return pointCount == 1;
+    }
+
+    public float getLeft() {
+        return left;
+    }
+
+    public float getTop() {
+        return top;
+    }
+
+    public float getRight() {
+        return right;
+    }
+
+    public float getBottom() {
+        return bottom;
+    }
+
+    public boolean intersects(float l, float t, float r, float b) {
+        return left <= r && right >= l && top <= b && bottom >= t;
+    }
+
+    /**
+     * Returns true if (x, y) lies on the inked area of this stroke, widened by tolerance.
+     */
+    public boolean hits(float x, float y, float tolerance) {
+        float reach = width / 2 + tolerance;
+        if (x < left - tolerance || x > right + tolerance
+                || y < top - tolerance || y > bottom + tolerance) {
+            return false;
+        }
+        ensureLoaded();
+        float reachSq = reach * reach;
+        if (pointCount == 1) {
+            return distanceSq(x, y, points[0], points[1], points[0], points[1]) <= reachSq;
+        }
+        for (int i = 1; i < pointCount; i++) {
+            if (distanceSq(x, y, points[i * 2 - 2], points[i * 2 - 1],
+                    points[i * 2], points[i * 2 + 1]) <= reachSq) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Squared distance from (px, py) to the segment (ax, ay)-(bx, by). */
+    static float distanceSq(float px, float py, float ax, float ay, float bx, float by) {
+        float dx = bx - ax;
+        float dy = by - ay;
+        float lenSq = dx * dx + dy * dy;
+        float t = 0;
+        if (lenSq > 0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / lenSq;
+            t = Math.max(0, Math.min(1, t));
+        }
+        float ex = ax + t * dx - px;
+        float ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+}
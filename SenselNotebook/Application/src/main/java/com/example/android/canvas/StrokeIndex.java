@@ -0,0 +1,146 @@
+package com.example.android.canvas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Uniform grid over stroke bounding boxes. Each stroke is registered in every cell its bounds
+ * overlap, so rectangle and point queries only look at the strokes near the area asked for
+ * instead of walking the whole page. Cells are hashed, so the grid has no fixed extent.
+ *
+ * <p>Strokes are inserted when they are committed and removed on undo; the index is not
+ * thread safe and is meant to be used from the thread that owns the strokes.</p>
+ */
+public class StrokeIndex {
+
+    private static final Comparator<Stroke> DRAW_ORDER = new Comparator<Stroke>() {
+        @Override
+        public int compare(Stroke a, Stroke b) {
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    private final float cellSize;
+    private final HashMap<Long, ArrayList<Stroke>> cells = new HashMap<Long, ArrayList<Stroke>>();
+    private int size;
+    private int stamp;
+
+    /**
+     * @param cellSize Edge length of a grid cell, in the same units as the stroke coordinates.
+     *                 Roughly the size of a typical stroke works well.
+     */
+    public StrokeIndex(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void insert(Stroke stroke) {
+        int x0 = cell(stroke.getLeft()), x1 = cell(stroke.getRight());
+        int y0 = cell(stroke.getTop()), y1 = cell(stroke.getBottom());
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                Long key = key(cx, cy);
+                ArrayList<Stroke> bucket = cells.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Stroke>(4);
+                    cells.put(key, bucket);
+                }
+                bucket.add(stroke);
+            }
+        }
+        size++;
+    }
+
+    public void remove(Stroke stroke) {
+        int x0 = cell(stroke.getLeft()), x1 = cell(stroke.getRight());
+        int y0 = cell(stroke.getTop()), y1 = cell(stroke.getBottom());
+        boolean found = false;
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                Long key = key(cx, cy);
+                ArrayList<Stroke> bucket = cells.get(key);
+                if (bucket != null && bucket.remove(stroke)) {
+                    found = true;
+                    if (bucket.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+        if (found) {
+            size--;
+        }
+    }
+
+    public void clear() {
+        cells.clear();
+        size = 0;
+    }
+
+    /**
+     * Collects every stroke whose bounds intersect the given rectangle into out, in drawing
+     * order (oldest first), so the result can be painted as-is.
+     */
+    public void query(float left, float top, float right, float bottom, List<Stroke> out) {
+        int x0 = cell(left), x1 = cell(right);
+        int y0 = cell(top), y1 = cell(bottom);
+        int start = out.size();
+        int mark = ++stamp;
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                ArrayList<Stroke> bucket = cells.get(key(cx, cy));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size(); i++) {
+                    Stroke s = bucket.get(i);
+                    if (s.queryStamp != mark && s.intersects(left, top, right, bottom)) {
+                        s.queryStamp = mark;
+                        out.add(s);
+                    }
+                }
+            }
+        }
+        if (out.size() - start > 1) {
+            Collections.sort(out.subList(start, out.size()), DRAW_ORDER);
+        }
+    }
+
+    /**
+     * Returns the topmost stroke whose ink passes within tolerance of (x, y), or null.
+     */
+    public Stroke hitTest(float x, float y, float tolerance) {
+        Stroke hit = null;
+        int x0 = cell(x - tolerance), x1 = cell(x + tolerance);
+        int y0 = cell(y - tolerance), y1 = cell(y + tolerance);
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                ArrayList<Stroke> bucket = cells.get(key(cx, cy));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < bucket.size(); i++) {
+                    Stroke s = bucket.get(i);
+                    if ((hit == null || s.getId() > hit.getId()) && s.hits(x, y, tolerance)) {
+                        hit = s;
+                    }
+                }
+            }
+        }
+        return hit;
+    }
+
+    private int cell(float v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,462 @@
+package com.example.android.canvas;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of page changes, so work done since the last full save survives
+ * the app being killed.
+ *
+ * <p>The journal listens to a {@link Page}. Every committed stroke, removal (undo) and clear
+ * becomes a small binary record, tagged with the page version it produced. The record is
+ * encoded on the calling thread and handed to a writer thread, which appends whatever has
+ * queued up in one write and fsyncs once every {@code syncEvery} records or
+ * {@code syncIntervalMillis}, whichever comes first.</p>
+ *
+ * <p>On startup the page is loaded from its {@link PageFile} and {@link #replay} applies the
+ * records newer than the file's version. Once a save of version V has reached disk,
+ * {@link #checkpoint} truncates the journal if nothing newer has been logged since.</p>
+ *
+ * <p>{@link #close} does not wait for the writer. A journal opened on the same file before
+ * the previous writer has finished starts appending only after it, and a replay of the file
+ * waits for it.</p>
+ *
+ * <pre>
+ * record   int length, byte type, long version, payload, int crc32(type .. payload)
+ * ADD      int color, float width, varint count, zigzag varint quantised point deltas
+ * REMOVE   int index in drawing order
+ * CLEAR    (empty)
+ * REPLACE  int count, count x ADD payload
+ * </pre>
+ */
+public class StrokeJournal implements Page.Listener {
+    private static final String TAG = "StrokeJournal";
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte REPLACE = 4;
+
+    // type + version, the part of a record body every record type has
+    private static final int BODY_HEADER = 1 + 8;
+    // length + body header + crc
+    private static final int RECORD_OVERHEAD = 4 + BODY_HEADER + 4;
+
+    // writers that have been closed but are still writing, by file; guarded by itself
+    private static final HashMap<File, Writer> closing = new HashMap<File, Writer>();
+
+    private final File file;
+    private final int syncEvery;
+    private final long syncIntervalMillis;
+    // markers the writer acts on instead of appending them
+    private final byte[] stopMarker = new byte[0];
+    private final byte[] checkpointMarker = new byte[0];
+
+    private Page page;
+    private Writer writer;
+    // end of the last intact record found by replay; anything after it is cut off by the next
+    // open only, since records are appended after it from then on
+    private long validLength = -1;
+
+    /**
+     * @param syncEvery Records to append before forcing them to disk.
+     * @param syncIntervalMillis Longest time an appended record may stay unsynced.
+     */
+    public StrokeJournal(File file, int syncEvery, long syncIntervalMillis) {
+        this.file = file;
+        this.syncEvery = syncEvery;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Applies the journalled changes that are newer than the page's current version. Replay
+     * stops at the first torn or corrupt record, or at a gap in the version sequence.
+     *
+     * @return Number of records applied.
+     */
+    public int replay(Page page) throws IOException {
+        Writer previous;
+        synchronized (closing) {
+            previous = closing.get(file);
+        }
+        if (previous != null) {
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + file);
+            }
+        }
+        if (!file.exists()) {
+            return 0;
+        }
+        byte[] data = readFully(file);
+        ByteBuffer in = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        int applied = 0;
+        validLength = 0;
+        while (in.remaining() >= RECORD_OVERHEAD) {
+            int start = in.position();
+            int length = in.getInt();
+            if (length < BODY_HEADER || length > in.remaining() - 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(data, start + 4, length);
+            in.position(start + 4 + length);
+            if ((int) crc.getValue() != in.getInt()) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(data, start + 4, length);
+            byte type = record.get();
+            long version = record.getLong();
+            if (version <= page.getVersion()) {
+                validLength = in.position();
+                continue;
+            }
+            if (version != page.getVersion() + 1) {
+                break;
+            }
+            switch (type) {
+                case ADD:
+                    page.add(readStroke(record));
+                    break;
+                case REMOVE:
+                    int index = record.getInt();
+                    if (index < 0 || index >= page.size()) {
+                        return applied;
+                    }
+                    page.remove(page.getStrokes().get(index));
+                    break;
+                case CLEAR:
+                    page.clear();
+                    break;
+                case REPLACE:
+                    int count = record.getInt();
+                    ArrayList<Stroke> strokes = new ArrayList<Stroke>(count);
+                    for (int i = 0; i < count; i++) {
+                        strokes.add(readStroke(record));
+                    }
+                    page.setStrokes(strokes);
+                    break;
+                default:
+                    return applied;
+            }
+            validLength = in.position();
+            applied++;
+        }
+        return applied;
+    }
+
+    /** End of the last intact record found by {@link #replay}, or -1 if it has not run. */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    /**
+     * For a journal that is opened without replaying it: where an earlier replay of the same
+     * file found the end of the last intact record, so that open cuts off anything after it.
+     * -1 leaves the file as it is.
+     */
+    public void setValidLength(long validLength) {
+        this.validLength = validLength;
+    }
+
+    /** Starts logging changes to page. */
+    public void open(Page page) {
+        this.page = page;
+        page.addListener(this);
+        // every version up to the page's own is in the page file or queued by an earlier writer
+        writer = new Writer(validLength, page.getVersion());
+        validLength = -1;
+        synchronized (closing) {
+            writer.previous = closing.get(file);
+        }
+        writer.start();
+    }
+
+    /**
+     * Stops logging. Returns at once; the writer syncs and closes the journal on its own thread
+     * once everything queued is written.
+     */
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        page.removeListener(this);
+        synchronized (closing) {
+            closing.put(file, writer);
+        }
+        writer.queue.add(stopMarker);
+        writer = null;
+    }
+
+    /**
+     * Tells the journal that the page has been saved durably at the given version. The journal
+     * is emptied unless changes newer than that have been logged since. Ignored while the
+     * journal is closed.
+     */
+    public void checkpoint(long savedVersion) {
+        if (writer == null) {
+            return;
+        }
+        writer.checkpointVersion = savedVersion;
+        writer.queue.add(checkpointMarker);
+    }
+
+    @Override
+    public void onStrokeAdded(Stroke stroke) {
+        Encoder record = new Encoder(ADD, page.getVersion());
+        record.putStroke(stroke);
+        writer.queue.add(record.finish());
+    }
+
+    @Override
+    public void onStrokeRemoved(Stroke stroke, int index) {
+        Encoder record = new Encoder(REMOVE, page.getVersion());
+        record.putInt(index);
+        writer.queue.add(record.finish());
+    }
+
+    @Override
+    public void onPageReplaced() {
+        List<Stroke> strokes = page.getStrokes();
+        if (strokes.isEmpty()) {
+            writer.queue.add(new Encoder(CLEAR, page.getVersion()).finish());
+            return;
+        }
+        Encoder record = new Encoder(REPLACE, page.getVersion());
+        record.putInt(strokes.size());
+        for (int i = 0; i < strokes.size(); i++) {
+            record.putStroke(strokes.get(i));
+        }
+        writer.queue.add(record.finish());
+    }
+
+    private static Stroke readStroke(ByteBuffer in) {
+        int color = in.getInt();
+        float width = in.getFloat();
+        int count = readVarint(in);
+        int qx = 0, qy = 0;
+        Stroke stroke = null;
+        for (int i = 0; i < count; i++) {
+            int zx = readVarint(in);
+            int zy = readVarint(in);
+            qx += (zx >>> 1) ^ -(zx & 1);
+            qy += (zy >>> 1) ^ -(zy & 1);
+            float x = qx * PageFile.QUANTUM, y = qy * PageFile.QUANTUM;
+            if (stroke == null) {
+                stroke = new Stroke(color, width, x, y);
+            } else {
+                stroke.addPoint(x, y);
+            }
+        }
+        stroke.finish();
+        return stroke;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0, shift = 0, b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Builds one framed record. */
+    private static class Encoder {
+        private final PageFile.VarintBuffer body = new PageFile.VarintBuffer();
+
+        Encoder(byte type, long version) {
+            body.putByte(type);
+            body.putLong(version);
+        }
+
+        void putInt(int v) {
+            body.putInt(v);
+        }
+
+        void putStroke(Stroke stroke) {
+            int count = stroke.getPointCount();
+            body.putInt(stroke.getColor());
+            body.putInt(Float.floatToIntBits(stroke.getWidth()));
+            body.putVarint(count);
+            int qx = 0, qy = 0;
+            for (int p = 0; p < count; p++) {
+                int x = Math.round(stroke.getX(p) / PageFile.QUANTUM);
+                int y = Math.round(stroke.getY(p) / PageFile.QUANTUM);
+                body.putZigzag(x - qx);
+                body.putZigzag(y - qy);
+                qx = x;
+                qy = y;
+            }
+        }
+
+        byte[] finish() {
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.size());
+            ByteBuffer out = ByteBuffer.allocate(body.size() + 8);
+            out.putInt(body.size());
+            out.put(body.array(), 0, body.size());
+            out.putInt((int) crc.getValue());
+            return out.array();
+        }
+    }
+
+    /**
+     * Appends queued records in batches and decides when to fsync. Each writer has a queue of its
+     * own, so that a closed writer still finishing cannot take records meant for the next one.
+     */
+    private class Writer extends Thread {
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+        private final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private int unsynced;
+        private long firstUnsyncedAt;
+        // newest version journalled, and the newest save reported by checkpoint
+        private long lastVersion;
+        private volatile long checkpointVersion = -1;
+        // closed writer of the same file that has to finish first, if any
+        private Writer previous;
+        // length to cut the file to before appending, or -1
+        private final long truncateTo;
+
+        Writer(long truncateTo, long lastVersion) {
+            super("StrokeJournal");
+            this.truncateTo = truncateTo;
+            this.lastVersion = lastVersion;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (previous != null) {
+                    previous.join();
+                    previous = null;
+                }
+                File dir = file.getParentFile();
+                if (dir != null && !dir.isDirectory()) {
+                    dir.mkdirs();
+                }
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+                if (truncateTo >= 0 && truncateTo < channel.size()) {
+                    channel.truncate(truncateTo);
+                }
+                channel.position(channel.size());
+                boolean running = true;
+                while (running) {
+                    byte[] first = unsynced > 0
+                            ? queue.poll(Math.max(1, firstUnsyncedAt + syncIntervalMillis
+                                    - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                            : queue.take();
+                    batch.clear();
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch);
+                    }
+                    running = append();
+                    if (unsynced > 0 && (!running || unsynced >= syncEvery
+                            || System.currentTimeMillis() - firstUnsyncedAt >= syncIntervalMillis)) {
+                        channel.force(false);
+                        unsynced = 0;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "journal write failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    if (raf != null) {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "journal close failed", e);
+                }
+                synchronized (closing) {
+                    if (closing.get(file) == this) {
+                        closing.remove(file);
+                    }
+                }
+            }
+        }
+
+        /** Appends the batch with a single gathering write; returns false once stopped. */
+        private boolean append() throws IOException {
+            ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>(batch.size());
+            boolean running = true;
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] record = batch.get(i);
+                if (record == stopMarker) {
+                    running = false;
+                } else if (record == checkpointMarker) {
+                    // everything logged so far is in the page file unless newer was logged
+                    writeBuffers(buffers);
+                    buffers.clear();
+                    if (lastVersion <= checkpointVersion) {
+                        channel.truncate(0);
+                        channel.position(0);
+                        channel.force(false);
+                        unsynced = 0;
+                    }
+                } else {
+                    buffers.add(ByteBuffer.wrap(record));
+                    lastVersion = ByteBuffer.wrap(record).getLong(5);
+                }
+            }
+            writeBuffers(buffers);
+            return running;
+        }
+
+        private void writeBuffers(ArrayList<ByteBuffer> buffers) throws IOException {
+            if (buffers.isEmpty()) {
+                return;
+            }
+            ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+            long remaining = 0;
+            for (ByteBuffer b : array) {
+                remaining += b.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(array);
+            }
+            if (unsynced == 0) {
+                firstUnsyncedAt = System.currentTimeMillis();
+            }
+            unsynced += array.length;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.android.canvas;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * Draws committed {@link Stroke}s onto a {@link Canvas} set up in page coordinates. Reuses one
+ * Paint and one Path, so an instance must only be used from one thread at a time.
+ */
+public class StrokeRenderer {
+
+    private final Paint paint;
+    private final Path path = new Path();
+
+    public StrokeRenderer() {
+        paint = newInkPaint();
+    }
+
+    /** A paint configured the way all ink in the app is drawn. */
+    public static Paint newInkPaint() {
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        return paint;
+    }
+
+    /**
+     * Replays a stroke's points with the same quadratic smoothing used while it was drawn,
+     * using the coarsest level of detail that is still accurate to a pixel at the given scale
+     * (pixels per page unit).
+     */
+    public void draw(Canvas canvas, Stroke stroke, float scale) {
+        paint.setColor(stroke.getColor());
+        paint.setStrokeWidth(stroke.getWidth());
+        if (stroke.isPoint()) {
+            canvas.drawPoint(stroke.getX(0), stroke.getY(0), paint);
+            return;
+        }
+        float[] pts = stroke.getPoints(scale);
+        int n = pts.length / 2;
+        path.rewind();
+        path.moveTo(pts[0], pts[1]);
+        for (int i = 1; i < n; i++) {
+            float px = pts[i * 2 - 2], py = pts[i * 2 - 1];
+            path.quadTo(px, py, (pts[i * 2] + px) / 2, (pts[i * 2 + 1] + py) / 2);
+        }
+        path.lineTo(pts[n * 2 - 2], pts[n * 2 - 1]);
+        canvas.drawPath(path, paint);
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.android.canvas;
+
+/**
+ * Douglas-Peucker polyline simplification over interleaved (x, y) float arrays.
+ */
+public class StrokeSimplifier {
+
+    private StrokeSimplifier() {}
+
+    /**
+     * Returns the points of the polyline that must be kept so that no dropped point lies
+     * further than tolerance from the simplified line. The first and last points are always
+     * kept. Returns the input array itself if nothing can be dropped.
+     *
+     * @param points Interleaved x, y coordinates, exactly 2 * count long.
+     * @param tolerance Maximum allowed deviation, in the same units as the points.
+     */
+    public static float[] simplify(float[] points, float tolerance) {
+        int count = points.length / 2;
+        if (count < 3) {
+            return points;
+        }
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+        int kept = 2;
+
+        // explicit stack of (first, last) index ranges instead of recursion
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        float tolSq = tolerance * tolerance;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            float ax = points[first * 2], ay = points[first * 2 + 1];
+            float bx = points[last * 2], by = points[last * 2 + 1];
+            float maxSq = tolSq;
+            int split = -1;
+            for (int i = first + 1; i < last; i++) {
+                float d = Stroke.distanceSq(points[i * 2], points[i * 2 + 1], ax, ay, bx, by);
+                if (d > maxSq) {
+                    maxSq = d;
+                    split = i;
+                }
+            }
+            if (split < 0) {
+                continue;
+            }
+            keep[split] = true;
+            kept++;
+            if (top + 4 > stack.length) {
+                int[] grown = new int[stack.length * 2];
+                System.arraycopy(stack, 0, grown, 0, top);
+                stack = grown;
+            }
+            stack[top++] = first;
+            stack[top++] = split;
+            stack[top++] = split;
+            stack[top++] = last;
+        }
+
+        if (kept == count) {
+            return points;
+        }
+        float[] result = new float[kept * 2];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                result[j++] = points[i * 2];
+                result[j++] = points[i * 2 + 1];
+            }
+        }
+        return result;
+    }
+}
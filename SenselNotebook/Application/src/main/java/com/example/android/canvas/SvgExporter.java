@@ -0,0 +1,87 @@
+package com.example.android.canvas;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes a page as an SVG document, one path element per stroke, streamed straight from the
+ * stroke data. Coordinates stay in page units (millimetres) and the curves are the same
+ * quadratic smoothing {@link StrokeRenderer} draws, so the output matches the screen at any
+ * size.
+ */
+public class SvgExporter {
+
+    private SvgExporter() {
+    }
+
+    /**
+     * Writes strokes, in drawing order, as a page covering the pad's area and every stroke; see
+     * {@link NotebookExporter#pageArea}.
+     */
+    public static void writePage(List<Stroke> strokes, Writer out) throws IOException {
+        float[] area = NotebookExporter.pageArea(strokes);
+        float width = area[2] - area[0];
+        float height = area[3] - area[1];
+        StringBuilder line = new StringBuilder(256);
+        line.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<svg xmlns=\"http://www.w3.org/2000/svg\" version=\"1.1\" width=\"");
+        NotebookExporter.appendNumber(line, width);
+        line.append("mm\" height=\"");
+        NotebookExporter.appendNumber(line, height);
+        // the view box starts at the page area's corner, so coordinates stay in page units
+        line.append("mm\" viewBox=\"");
+        appendPoint(line, area[0], area[1]);
+        line.append(' ');
+        NotebookExporter.appendNumber(line, width);
+        line.append(' ');
+        NotebookExporter.appendNumber(line, height);
+        line.append("\" fill=\"none\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+        out.append(line);
+        for (int i = 0; i < strokes.size(); i++) {
+            line.setLength(0);
+            appendStroke(line, strokes.get(i));
+            out.append(line);
+        }
+        out.append("</svg>\n");
+    }
+
+    private static void appendStroke(StringBuilder out, Stroke stroke) {
+        int n = stroke.getPointCount();
+        out.append("<path d=\"M");
+        appendPoint(out, stroke.getX(0), stroke.getY(0));
+        if (n == 1) {
+            // a zero-length segment, which the round cap turns into a dot
+            out.append("l0 0");
+        } else {
+            for (int i = 1; i < n; i++) {
+                float px = stroke.getX(i - 1), py = stroke.getY(i - 1);
+                out.append('Q');
+                appendPoint(out, px, py);
+                out.append(' ');
+                appendPoint(out, (stroke.getX(i) + px) / 2, (stroke.getY(i) + py) / 2);
+            }
+            out.append('L');
+            appendPoint(out, stroke.getX(n - 1), stroke.getY(n - 1));
+        }
+        out.append("\" stroke=\"#");
+        int rgb = stroke.getColor() & 0xffffff;
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            out.append(Character.forDigit((rgb >> shift) & 0xf, 16));
+        }
+        int alpha = stroke.getColor() >>> 24;
+        if (alpha != 0xff) {
+            out.append("\" stroke-opacity=\"");
+            NotebookExporter.appendNumber(out, alpha / 255f);
+        }
+        out.append("\" stroke-width=\"");
+        NotebookExporter.appendNumber(out, stroke.getWidth());
+        out.append("\"/>\n");
+    }
+
+    private static void appendPoint(StringBuilder out, float x, float y) {
+        NotebookExporter.appendNumber(out, x);
+        out.append(' ');
+        NotebookExporter.appendNumber(out, y);
+    }
+}
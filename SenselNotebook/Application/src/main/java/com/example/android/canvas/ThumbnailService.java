@@ -0,0 +1,214 @@
+package com.example.android.canvas;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces small images of notebook pages for an overview.
+ *
+ * <p>Thumbnails are rasterised straight from stroke data at the thumbnail's own resolution, so
+ * strokes are drawn from their coarsest fitting level of detail and no full-size page bitmap
+ * is ever made. Each one is written to a cache directory under a name made of the page index
+ * and the page content version; as long as a page does not change, later requests, including
+ * ones from later sessions, decode the cached file instead of rendering again. Recently used
+ * thumbnails are also kept in memory, in an LRU cache bounded by bytes.</p>
+ *
+ * <p>Work runs on a small pool of worker threads, and a page that is already being produced
+ * is not queued again; every caller waiting for it gets the result, on the UI thread.</p>
+ */
+public class ThumbnailService {
+    private static final String TAG = "ThumbnailService";
+
+    /** Receives thumbnails on the UI thread. */
+    public interface Callback {
+        void onThumbnail(int index, Bitmap thumbnail);
+    }
+
+    private static final int KEEP_ALIVE_SECONDS = 30;
+
+    private final Notebook notebook;
+    private final File cacheDir;
+    private final int width, height;
+    private final LruCache<Integer, Thumbnail> memory;
+    private final ThreadPoolExecutor workers;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    // callbacks waiting for pages that are being produced, by page index
+    private final HashMap<Integer, List<Callback>> inFlight =
+            new HashMap<Integer, List<Callback>>();
+
+    private static class Thumbnail {
+        final Bitmap bitmap;
+        final long version;
+
+        Thumbnail(Bitmap bitmap, long version) {
+            this.bitmap = bitmap;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param width Thumbnail width in pixels; the height follows from the pad's aspect ratio.
+     * @param maxMemoryBytes Memory budget for thumbnails kept in memory.
+     */
+    public ThumbnailService(Notebook notebook, File cacheDir, int width, int maxMemoryBytes) {
+        this.notebook = notebook;
+        this.cacheDir = cacheDir;
+        this.width = width;
+        this.height = Math.round(width * SenselPad.HEIGHT / SenselPad.WIDTH);
+        memory = new LruCache<Integer, Thumbnail>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(Integer key, Thumbnail value) {
+                return value.bitmap.getRowBytes() * value.bitmap.getHeight();
+            }
+        };
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        workers = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the thumbnail of page index if one is in memory, and queues a check that it is
+     * current. If the page has changed, or nothing was in memory, the callback receives the
+     * new thumbnail once it is ready.
+     */
+    public Bitmap request(int index, Callback callback) {
+        Thumbnail cached = memory.get(index);
+        List<Callback> waiting = inFlight.get(index);
+        if (waiting == null) {
+            waiting = new ArrayList<Callback>();
+            inFlight.put(index, waiting);
+            workers.execute(new Produce(index, cached == null ? -1 : cached.version));
+        }
+        if (!waiting.contains(callback)) {
+            waiting.add(callback);
+        }
+        return cached == null ? null : cached.bitmap;
+    }
+
+    /** Thumbnail width in pixels. */
+    public int getWidth() {
+        return width;
+    }
+
+    /** The thumbnails kept in memory, for a {@link BitmapPool} to account for and trim. */
+    public BitmapPool.Cache getMemoryCache() {
+        return new BitmapPool.Cache() {
+            @Override
+            public int sizeBytes() {
+                return memory.size();
+            }
+
+            @Override
+            public void trimToSize(int maxBytes) {
+                BitmapPool.trim(memory, maxBytes);
+            }
+        };
+    }
+
+    /** Forgets pending callbacks, for example when the overview is closed. */
+    public void cancelAll() {
+        inFlight.clear();
+        workers.getQueue().clear();
+    }
+
+    private File cacheFile(int index, long version) {
+        return new File(cacheDir, "page-" + index + "-v" + version + ".png");
+    }
+
+    private class Produce implements Runnable {
+        final int index;
+        final long knownVersion;
+
+        Produce(int index, long knownVersion) {
+            this.index = index;
+            this.knownVersion = knownVersion;
+        }
+
+        @Override
+        public void run() {
+            // loading maps the page file and replays the journal; points are not decoded yet
+            Page page = notebook.read(index);
+            long version = page.getVersion();
+            Bitmap bitmap = null;
+            if (version != knownVersion) {
+                File file = cacheFile(index, version);
+                if (file.exists()) {
+                    bitmap = BitmapFactory.decodeFile(file.getPath());
+                }
+                if (bitmap == null) {
+                    List<Stroke> strokes = page.getStrokes();
+                    bitmap = PageRasterizer.render(strokes.toArray(new Stroke[strokes.size()]),
+                            width, height, width / SenselPad.WIDTH, 0, 0, Color.WHITE);
+                    store(bitmap, file);
+                }
+            }
+            final Thumbnail thumbnail = bitmap == null ? null : new Thumbnail(bitmap, version);
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    List<Callback> callbacks = inFlight.remove(index);
+                    if (thumbnail == null) {
+                        return;
+                    }
+                    memory.put(index, thumbnail);
+                    for (int i = 0; callbacks != null && i < callbacks.size(); i++) {
+                        callbacks.get(i).onThumbnail(index, thumbnail.bitmap);
+                    }
+                }
+            });
+        }
+
+        private void store(Bitmap bitmap, File file) {
+            if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+                Log.e(TAG, "could not create " + cacheDir);
+                return;
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(tmp);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                out.close();
+                out = null;
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("could not replace " + file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "could not cache thumbnail of page " + index, e);
+                return;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // already failed
+                    }
+                }
+            }
+            // older versions of this page are never asked for again
+            String prefix = "page-" + index + "-v";
+            String[] names = cacheDir.list();
+            for (int i = 0; names != null && i < names.length; i++) {
+                if (names[i].startsWith(prefix) && !names[i].equals(file.getName())) {
+                    new File(cacheDir, names[i]).delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.android.canvas;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * LRU cache of prerendered ink tiles, bounded by bitmap bytes. Tiles it drops are released to a
+ * {@link BitmapPool} for the next tile to reuse.
+ *
+ * <p>Tiles are TILE_SIZE pixels square. At zoom level z a tile covers TILE_SIZE / 2^z page
+ * units, so each level renders the page at 2^z pixels per page unit and the view scales the
+ * nearest level to its actual zoom. Tiles are addressed by (level, tx, ty) where tx and ty are
+ * tile columns and rows in page space.</p>
+ */
+public class TileCache implements BitmapPool.Cache {
+
+    public static final int TILE_SIZE = 256;
+    public static final int MIN_LEVEL = -8;
+    public static final int MAX_LEVEL = 8;
+
+    private final LruCache<Long, Bitmap> tiles;
+    private final BitmapPool pool;
+    // number of cached tiles per level, so invalidation can skip levels that hold nothing
+    private final int[] levelCounts = new int[MAX_LEVEL - MIN_LEVEL + 1];
+
+    /**
+     * @param maxBytes Memory budget for all cached tiles.
+     * @param pool Pool that full-size tiles are released to when they are dropped.
+     */
+    public TileCache(int maxBytes, final BitmapPool pool) {
+        this.pool = pool;
+        tiles = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                if (newValue == null) {
+                    levelCounts[levelOf(key) - MIN_LEVEL]--;
+                }
+                // placeholders for blank tiles are shared, and smaller than a tile
+                if (oldValue != newValue && oldValue.getWidth() == TILE_SIZE) {
+                    pool.release(oldValue);
+                }
+            }
+        };
+    }
+
+    /** The zoom level whose resolution is closest to the given scale. */
+    public static int levelFor(float scale) {
+        int level = Math.round((float) (Math.log(scale) / Math.log(2)));
+        return Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+    }
+
+    /** Pixels per page unit at the given level. */
+    public static float levelScale(int level) {
+        return Math.scalb(1f, level);
+    }
+
+    /** Edge length of a tile in page units at the given level. */
+    public static float tileExtent(int level) {
+        return TILE_SIZE / levelScale(level);
+    }
+
+    public Bitmap get(int level, int tx, int ty) {
+        return tiles.get(key(level, tx, ty));
+    }
+
+    public void put(int level, int tx, int ty, Bitmap tile) {
+        if (tiles.put(key(level, tx, ty), tile) == null) {
+            levelCounts[level - MIN_LEVEL]++;
+        }
+    }
+
+    public void remove(int level, int tx, int ty) {
+        tiles.remove(key(level, tx, ty));
+    }
+
+    public boolean hasLevel(int level) {
+        return levelCounts[level - MIN_LEVEL] > 0;
+    }
+
+    /** Drops every cached tile, at any level, that overlaps the given page rectangle. */
+    public void invalidate(float left, float top, float right, float bottom) {
+        for (int level = MIN_LEVEL; level <= MAX_LEVEL; level++) {
+            if (!hasLevel(level)) {
+                continue;
+            }
+            float extent = tileExtent(level);
+            int tx1 = (int) Math.floor(right / extent);
+            int ty1 = (int) Math.floor(bottom / extent);
+            for (int tx = (int) Math.floor(left / extent); tx <= tx1; tx++) {
+                for (int ty = (int) Math.floor(top / extent); ty <= ty1; ty++) {
+                    tiles.remove(key(level, tx, ty));
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        tiles.evictAll();
+    }
+
+    @Override
+    public int sizeBytes() {
+        return tiles.size();
+    }
+
+    @Override
+    public void trimToSize(int maxBytes) {
+        BitmapPool.trim(tiles, maxBytes);
+    }
+
+    private static Long key(int level, int tx, int ty) {
+        return ((long) (level - MIN_LEVEL) << 56)
+                | (((long) tx & 0xfffffffL) << 28)
+                | ((long) ty & 0xfffffffL);
+    }
+
+    private static int levelOf(Long key) {
+        return (int) (key >>> 56) + MIN_LEVEL;
+    }
+}
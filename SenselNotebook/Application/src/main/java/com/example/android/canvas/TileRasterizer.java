@@ -0,0 +1,317 @@
+package com.example.android.canvas;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Software rasteriser that draws strokes into an ARGB pixel array, one tile at a time.
+ *
+ * <p>A job bins the strokes by the tiles their bounds cover, so each tile only looks at the
+ * strokes that can touch it. Inside a tile, every stroke is drawn as the union of anti-aliased
+ * capsules around the segments of its level of detail for the scale. Its coverage is taken as
+ * the maximum over those capsules, so joints do not get darker, and composited once in
+ * drawing order. The segments follow the path {@link StrokeRenderer} draws on screen, a
+ * quadratic curve around each sample between the midpoints either side of it, flattened to
+ * within a quarter of a pixel, so images and tiles show the same ink.</p>
+ *
+ * <p>Tiles share no mutable state apart from their own pixels, so they can be rendered on any
+ * number of threads: {@link #run()} renders them one after another and {@link Parallel#run}
+ * splits them across a fork/join pool.</p>
+ *
+ * <p>The class has no Android dependencies, so it can be benchmarked on a desktop JVM (see
+ * {@link RasterBenchmark}). {@link Parallel} is kept separate because fork/join is only
+ * available on Android from API 21.</p>
+ */
+public class TileRasterizer {
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+    // tiles below which a fork/join task stops splitting
+    private static final int TILES_PER_TASK = 4;
+    // most segments one curve of a stroke is flattened into
+    private static final int MAX_PIECES = 16;
+
+    private final Stroke[] strokes;
+    private final int[] argb;
+    private final int width, height;
+    private final float scale, originX, originY;
+    private final int tileSize, tilesX, tilesY;
+    // strokes per tile, as offsets into binItems (compressed sparse rows)
+    private final int[] binStart;
+    private final int[] binItems;
+    // level-of-detail points of each stroke, fetched by whichever tile needs them first
+    private final AtomicReferenceArray<float[]> points;
+
+    /**
+     * Prepares a job that draws strokes, in array order, over the pixels of argb (width by
+     * height, row-major, non-premultiplied), seen through a viewport of the given scale and
+     * origin.
+     */
+    public TileRasterizer(Stroke[] strokes, int[] argb, int width, int height, float scale,
+                          float originX, float originY, int tileSize) {
+        this.strokes = strokes;
+        this.argb = argb;
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.originX = originX;
+        this.originY = originY;
+        this.tileSize = tileSize;
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        points = new AtomicReferenceArray<float[]>(strokes.length);
+
+        // count, then fill, so binning allocates two arrays however many strokes there are
+        binStart = new int[tilesX * tilesY + 1];
+        int[] range = new int[4];
+        for (int s = 0; s < strokes.length; s++) {
+            if (tileRange(strokes[s], range)) {
+                for (int ty = range[1]; ty <= range[3]; ty++) {
+                    for (int tx = range[0]; tx <= range[2]; tx++) {
+                        binStart[ty * tilesX + tx + 1]++;
+                    }
+                }
+            }
+        }
+        for (int t = 0; t < tilesX * tilesY; t++) {
+            binStart[t + 1] += binStart[t];
+        }
+        binItems = new int[binStart[tilesX * tilesY]];
+        int[] fill = new int[tilesX * tilesY];
+        for (int s = 0; s < strokes.length; s++) {
+            if (tileRange(strokes[s], range)) {
+                for (int ty = range[1]; ty <= range[3]; ty++) {
+                    for (int tx = range[0]; tx <= range[2]; tx++) {
+                        int t = ty * tilesX + tx;
+                        binItems[binStart[t] + fill[t]++] = s;
+                    }
+                }
+            }
+        }
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    /** Renders every tile on the calling thread. */
+    public void run() {
+        renderTiles(0, getTileCount());
+    }
+
+    /** Renders tiles [from, to). Distinct ranges may be rendered concurrently. */
+    public void renderTiles(int from, int to) {
+        Scratch scratch = new Scratch(tileSize);
+        for (int t = from; t < to; t++) {
+            renderTile(t, scratch);
+        }
+    }
+
+    /**
+     * Per-thread coverage buffer for one tile. A coverage value only counts if its stamp
+     * matches the stroke being drawn, so nothing has to be cleared between strokes.
+     */
+    private static class Scratch {
+        final float[] coverage;
+        final int[] stamps;
+        int stamp;
+
+        Scratch(int tileSize) {
+            coverage = new float[tileSize * tileSize];
+            stamps = new int[tileSize * tileSize];
+        }
+    }
+
+    /** Puts the inclusive tile range a stroke's bounds cover into range; false if none. */
+    private boolean tileRange(Stroke stroke, int[] range) {
+        float left = (stroke.getLeft() - originX) * scale - 1;
+        float top = (stroke.getTop() - originY) * scale - 1;
+        float right = (stroke.getRight() - originX) * scale + 1;
+        float bottom = (stroke.getBottom() - originY) * scale + 1;
+        if (right < 0 || bottom < 0 || left >= width || top >= height) {
+            return false;
+        }
+        range[0] = Math.max(0, (int) left / tileSize);
+        range[1] = Math.max(0, (int) top / tileSize);
+        range[2] = Math.min(tilesX - 1, (int) right / tileSize);
+        range[3] = Math.min(tilesY - 1, (int) bottom / tileSize);
+        return true;
+    }
+
+    private float[] pointsOf(int s) {
+        float[] p = points.get(s);
+        if (p == null) {
+            p = flatten(strokes[s].getPoints(scale), scale);
+            points.compareAndSet(s, null, p);
+        }
+        return p;
+    }
+
+    /**
+     * Flattens the path StrokeRenderer draws through pts: from the first point, a quadratic
+     * with each point as control between the midpoints either side of it, then straight to the
+     * last point. A quadratic strays at most |start - 2 control + end| / 4n^2 from n equal
+     * pieces, so n is chosen to keep that within a quarter of a pixel.
+     */
+    static float[] flatten(float[] pts, float scale) {
+        int n = pts.length / 2;
+        if (n < 3) {
+            // a point, or a straight line between two
+            return pts;
+        }
+        // curve i has control point i - 1; the first starts at its control point, so it is
+        // the line to the first midpoint
+        int[] pieces = new int[n];
+        pieces[1] = 1;
+        int total = 3;
+        for (int i = 2; i < n; i++) {
+            float dx = (pts[i * 2 - 4] + pts[i * 2]) / 2 - pts[i * 2 - 2];
+            float dy = (pts[i * 2 - 3] + pts[i * 2 + 1]) / 2 - pts[i * 2 - 1];
+            float bend = (float) Math.sqrt(Math.sqrt(dx * dx + dy * dy) * scale);
+            pieces[i] = Math.max(1, Math.min(MAX_PIECES, (int) Math.ceil(bend)));
+            total += pieces[i];
+        }
+        float[] out = new float[total * 2];
+        out[0] = pts[0];
+        out[1] = pts[1];
+        int o = 2;
+        float sx = pts[0], sy = pts[1];
+        for (int i = 1; i < n; i++) {
+            float cx = pts[i * 2 - 2], cy = pts[i * 2 - 1];
+            float ex = (cx + pts[i * 2]) / 2, ey = (cy + pts[i * 2 + 1]) / 2;
+            for (int k = 1; k <= pieces[i]; k++) {
+                float t = (float) k / pieces[i], u = 1 - t;
+                out[o++] = u * u * sx + 2 * u * t * cx + t * t * ex;
+                out[o++] = u * u * sy + 2 * u * t * cy + t * t * ey;
+            }
+            sx = ex;
+            sy = ey;
+        }
+        out[o++] = pts[n * 2 - 2];
+        out[o] = pts[n * 2 - 1];
+        return out;
+    }
+
+    private void renderTile(int tile, Scratch scratch) {
+        int x0 = (tile % tilesX) * tileSize, y0 = (tile / tilesX) * tileSize;
+        int x1 = Math.min(width, x0 + tileSize), y1 = Math.min(height, y0 + tileSize);
+        float[] coverage = scratch.coverage;
+        int[] stamps = scratch.stamps;
+        for (int b = binStart[tile]; b < binStart[tile + 1]; b++) {
+            int s = binItems[b];
+            Stroke stroke = strokes[s];
+            float[] p = pointsOf(s);
+            int stamp = ++scratch.stamp;
+            // at least a one pixel wide line, however far out the view is zoomed
+            float radius = Math.max(0.5f, stroke.getWidth() * scale / 2);
+            float reach = radius + 0.5f;
+            // squared distances beyond which a pixel is untouched, and within which it is full
+            float outerSq = reach * reach;
+            float innerSq = reach > 1 ? (reach - 1) * (reach - 1) : 0;
+
+            // area of the tile the stroke touched
+            int dl = x1, dt = y1, dr = x0 - 1, db = y0 - 1;
+            int n = p.length / 2;
+            for (int i = 0; i < Math.max(1, n - 1); i++) {
+                float ax = (p[i * 2] - originX) * scale, ay = (p[i * 2 + 1] - originY) * scale;
+                int j = Math.min(i + 1, n - 1);
+                float bx = (p[j * 2] - originX) * scale, by = (p[j * 2 + 1] - originY) * scale;
+                int l = Math.max(x0, (int) Math.floor(Math.min(ax, bx) - reach));
+                int t = Math.max(y0, (int) Math.floor(Math.min(ay, by) - reach));
+                int r = Math.min(x1 - 1, (int) Math.ceil(Math.max(ax, bx) + reach));
+                int bt = Math.min(y1 - 1, (int) Math.ceil(Math.max(ay, by) + reach));
+                if (l > r || t > bt) {
+                    continue;
+                }
+                dl = Math.min(dl, l);
+                dt = Math.min(dt, t);
+                dr = Math.max(dr, r);
+                db = Math.max(db, bt);
+                for (int y = t; y <= bt; y++) {
+                    int row = (y - y0) * tileSize - x0;
+                    for (int x = l; x <= r; x++) {
+                        float dSq = Stroke.distanceSq(x + 0.5f, y + 0.5f, ax, ay, bx, by);
+                        if (dSq >= outerSq) {
+                            continue;
+                        }
+                        float c = dSq <= innerSq ? 1 : reach - (float) Math.sqrt(dSq);
+                        int k = row + x;
+                        if (stamps[k] != stamp) {
+                            stamps[k] = stamp;
+                            coverage[k] = c;
+                        } else if (c > coverage[k]) {
+                            coverage[k] = c;
+                        }
+                    }
+                }
+            }
+            if (dl <= dr) {
+                composite(stroke.getColor(), scratch, x0, y0, dl, dt, dr, db);
+            }
+        }
+    }
+
+    /** Draws color over the pixels in [l, r] x [t, b] with the given coverage (src-over). */
+    private void composite(int color, Scratch scratch, int x0, int y0, int l, int t, int r,
+                           int b) {
+        float[] coverage = scratch.coverage;
+        int[] stamps = scratch.stamps;
+        float sa = (color >>> 24) / 255f;
+        int sr = (color >> 16) & 0xff, sg = (color >> 8) & 0xff, sb = color & 0xff;
+        for (int y = t; y <= b; y++) {
+            int row = (y - y0) * tileSize - x0;
+            int out = y * width;
+            for (int x = l; x <= r; x++) {
+                if (stamps[row + x] != scratch.stamp) {
+                    continue;
+                }
+                float a = coverage[row + x] * sa;
+                if (a <= 0) {
+                    continue;
+                }
+                int dst = argb[out + x];
+                float da = (dst >>> 24) / 255f * (1 - a);
+                float oa = a + da;
+                argb[out + x] = Math.round(oa * 255) << 24
+                        | Math.round((sr * a + ((dst >> 16) & 0xff) * da) / oa) << 16
+                        | Math.round((sg * a + ((dst >> 8) & 0xff) * da) / oa) << 8
+                        | Math.round((sb * a + (dst & 0xff) * da) / oa);
+            }
+        }
+    }
+
+    /** Renders a job's tiles on a fork/join pool. */
+    public static class Parallel {
+
+        private Parallel() {
+        }
+
+        /** Renders every tile of job on pool and returns once all are done. */
+        public static void run(TileRasterizer job, ForkJoinPool pool) {
+            pool.invoke(new TileTask(job, 0, job.getTileCount()));
+        }
+    }
+
+    private static class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TileRasterizer job;
+        private final int from, to;
+
+        TileTask(TileRasterizer job, int from, int to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILES_PER_TASK) {
+                job.renderTiles(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TileTask(job, from, mid), new TileTask(job, mid, to));
+        }
+    }
+}
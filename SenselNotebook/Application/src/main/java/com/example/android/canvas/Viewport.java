@@ -0,0 +1,73 @@
+package com.example.android.canvas;
+
+/**
+ * Maps between page coordinates and screen pixels for a pannable, zoomable view onto an
+ * unbounded page. Page units are sensor millimetres; the scale is in pixels per page unit.
+ */
+public class Viewport {
+
+    private float scale = 1;
+    private float minScale = 0;
+    private float maxScale = Float.MAX_VALUE;
+    // page coordinate shown at the top-left pixel of the view
+    private float originX, originY;
+
+    public float getScale() {
+        return scale;
+    }
+
+    public float getOriginX() {
+        return originX;
+    }
+
+    public float getOriginY() {
+        return originY;
+    }
+
+    public void set(float scale, float originX, float originY) {
+        this.scale = clamp(scale);
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    public void setScaleLimits(float minScale, float maxScale) {
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        scale = clamp(scale);
+    }
+
+    public float toScreenX(float pageX) {
+        return (pageX - originX) * scale;
+    }
+
+    public float toScreenY(float pageY) {
+        return (pageY - originY) * scale;
+    }
+
+    public float toPageX(float screenX) {
+        return screenX / scale + originX;
+    }
+
+    public float toPageY(float screenY) {
+        return screenY / scale + originY;
+    }
+
+    /** Moves the view by the given number of screen pixels. */
+    public void panBy(float dx, float dy) {
+        originX += dx / scale;
+        originY += dy / scale;
+    }
+
+    /** Zooms by factor while keeping the page point under (focusX, focusY) in place. */
+    public void zoomBy(float factor, float focusX, float focusY) {
+        float pageX = toPageX(focusX);
+        float pageY = toPageY(focusY);
+        scale = clamp(scale * factor);
+        originX = pageX - focusX / scale;
+        originY = pageY - focusY / scale;
+    }
+
+    private float clamp(float s) {
+        return Math.max(minScale, Math.min(maxScale, s));
+    }
+}
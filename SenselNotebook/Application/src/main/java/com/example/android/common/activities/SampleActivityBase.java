@@ -19,7 +19,9 @@ package com.example.android.common.activities;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
 
+import com.example.android.common.logger.AsyncLogNode;
 import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogNode;
 import com.example.android.common.logger.LogWrapper;
 
 /**
@@ -43,9 +45,17 @@ public class SampleActivityBase extends FragmentActivity {
     /** Set up targets to receive log data */
     public void initializeLogging() {
         // Using Log, front-end to the logging chain, emulates android.util.log method signatures.
+        // Callers only queue their log data; a background thread passes it down the chain.
+        LogNode previous = Log.getLogNode();
+        if (previous instanceof AsyncLogNode) {
+            ((AsyncLogNode) previous).close();
+        }
+        AsyncLogNode asyncLogNode = new AsyncLogNode();
+        Log.setLogNode(asyncLogNode);
+
         // Wraps Android's native log framework
         LogWrapper logWrapper = new LogWrapper();
-        Log.setLogNode(logWrapper);
+        asyncLogNode.setNext(logWrapper);
 
         Log.i(TAG, "Ready");
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LogNode} that hands log data to the rest of the chain on a background thread, so that
+ * logging costs the calling thread little more than an allocation.
+ *
+ * <p>Entries go into a bounded ring buffer that any number of threads write to without locking:
+ * each claims a sequence number and stores its entry in the slot for it. When writers get a
+ * whole ring ahead of the drain thread, the newest entries overwrite the oldest, and the drain
+ * thread counts what it missed in {@link #getDroppedCount()}. The drain thread wakes when data
+ * arrives, then waits a short while so that a burst reaches the next node as one batch.</p>
+ */
+public class AsyncLogNode implements LogNode {
+
+    /** Default number of entries the ring holds. */
+    public static final int DEFAULT_CAPACITY = 1024;
+    // how long the drain thread lets entries collect after it has woken up
+    private static final long BATCH_NANOS = 16 * 1000 * 1000L;
+
+    private static class Entry {
+        final long sequence;
+        final int priority;
+        final String tag;
+        final String msg;
+        final Throwable tr;
+
+        Entry(long sequence, int priority, String tag, String msg, Throwable tr) {
+            this.sequence = sequence;
+            this.priority = priority;
+            this.tag = tag;
+            this.msg = msg;
+            this.tr = tr;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    // sequence number of the next entry to be written
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainThread;
+    // set by the drain thread before it parks with nothing to do
+    private volatile boolean idle;
+    private volatile boolean closed;
+
+    // For piping:  The next node to receive Log data after this one has done its work.
+    private volatile LogNode mNext;
+
+    public AsyncLogNode() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of entries the ring holds, rounded up to a power of two.
+     */
+    public AsyncLogNode(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new AtomicReferenceArray<Entry>(size);
+        mask = size - 1;
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "AsyncLogNode");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Returns the next LogNode in the linked list.
+     */
+    public LogNode getNext() {
+        return mNext;
+    }
+
+    /**
+     * Sets the LogNode data will be sent to. That node is called on the drain thread.
+     */
+    public void setNext(LogNode node) {
+        mNext = node;
+    }
+
+    /** Number of entries overwritten before the drain thread got to them. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Queues the log data for the next node and returns at once.
+     * @param priority Log level of the data being logged.  Verbose, Error, etc.
+     * @param tag Tag for for the log data.  Can be used to organize log statements.
+     * @param msg The actual message to be logged. The actual message to be logged.
+     * @param tr If an exception was thrown, this can be sent along for the logging facilities
+     *           to extract and print useful information.
+     */
+    @Override
+    public void println(int priority, String tag, String msg, Throwable tr) {
+        long sequence = head.getAndIncrement();
+        Entry entry = new Entry(sequence, priority, tag, msg, tr);
+        int slot = (int) sequence & mask;
+        while (true) {
+            Entry current = ring.get(slot);
+            if (current != null && current.sequence > sequence) {
+                // a writer a whole ring later got here first; this entry is the older one, and
+                // the drain thread counts it as dropped when it finds the newer one in its place
+                break;
+            }
+            if (ring.compareAndSet(slot, current, entry)) {
+                break;
+            }
+        }
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(drainThread);
+        }
+    }
+
+    /**
+     * Stops the drain thread once it has passed on everything queued so far. Entries logged
+     * afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(drainThread);
+    }
+
+    private void drain() {
+        long tail = 0;
+        while (true) {
+            boolean closing = closed;
+            long written = head.get();
+            if (written - tail > ring.length()) {
+                // writers lapped the ring; everything before its oldest slot is gone
+                dropped.addAndGet(written - ring.length() - tail);
+                tail = written - ring.length();
+            }
+            while (tail < written) {
+                Entry entry = ring.get((int) tail & mask);
+                if (entry == null || entry.sequence < tail) {
+                    // claimed but not stored yet; pick it up on the next pass
+                    break;
+                }
+                if (entry.sequence > tail) {
+                    // overwritten by a later lap: skip to the oldest entry still there
+                    dropped.addAndGet(entry.sequence - ring.length() + 1 - tail);
+                    tail = entry.sequence - ring.length() + 1;
+                    continue;
+                }
+                // let go of the entry unless a later lap has already replaced it
+                ring.compareAndSet((int) tail & mask, entry, null);
+                LogNode next = mNext;
+                if (next != null) {
+                    next.println(entry.priority, entry.tag, entry.msg, entry.tr);
+                }
+                tail++;
+            }
+            if (closing && tail >= written) {
+                return;
+            }
+            if (tail >= written) {
+                idle = true;
+                // a writer may have come in before idle was set, and would not have woken us
+                if (head.get() == tail && !closed) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                LockSupport.parkNanos(this, BATCH_NANOS);
+            } else {
+                // an entry is still being stored
+                Thread.yield();
+            }
+        }
+    }
+}
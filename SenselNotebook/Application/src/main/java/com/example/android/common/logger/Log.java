@@ -22,6 +22,12 @@ package com.example.android.common.logger;
  * an instance of it can function as a drop-in replacement for {@link android.util.Log}.
  * Most of the methods in this class server only to map a method call in Log to its equivalent
  * in LogNode.</p>
+ *
+ * <p>Data below the level set with {@link #setLevel} is dropped before it reaches the chain. For
+ * hot paths there are overloads that take a format with "{}" placeholders and primitive
+ * arguments: the message is only built when its priority is loggable, so a disabled call costs
+ * a comparison. Where a message needs more than these overloads offer, guard building it with
+ * {@link #isLoggable}.</p>
  */
 public class Log {
     // Grabbing the native values from Android's native logging facilities,
@@ -37,6 +43,9 @@ public class Log {
     // Stores the beginning of the LogNode topology.
     private static LogNode mLogNode;
 
+    // Lowest priority that is passed on to the LogNode.
+    private static volatile int mLevel = VERBOSE;
+
     /**
      * Returns the next LogNode in the linked list.
      */
@@ -51,6 +60,30 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Sets the lowest priority that is logged, or {@link #NONE} to log nothing.
+     */
+    public static void setLevel(int level) {
+        mLevel = level == NONE ? Integer.MAX_VALUE : level;
+    }
+
+    /**
+     * Returns the lowest priority that is logged.
+     */
+    public static int getLevel() {
+        return mLevel == Integer.MAX_VALUE ? NONE : mLevel;
+    }
+
+    /**
+     * Returns whether data of the given priority would be logged, so that callers can skip
+     * building a message that nobody reads.
+     *
+     * @param priority Log level to check. Verbose, Error, etc.
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= mLevel && mLogNode != null;
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -62,7 +95,7 @@ public class Log {
      *           to extract and print useful information.
      */
     public static void println(int priority, String tag, String msg, Throwable tr) {
-        if (mLogNode != null) {
+        if (priority >= mLevel && mLogNode != null) {
             mLogNode.println(priority, tag, msg, tr);
         }
     }
@@ -101,6 +134,72 @@ public class Log {
         v(tag, msg, null);
     }
 
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void v(String tag, String format, long arg) {
+        if (isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void v(String tag, String format, float arg) {
+        if (isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void v(String tag, String format, double arg) {
+        if (isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at VERBOSE priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where each argument goes.
+     * @param arg1 Argument for the first placeholder.
+     * @param arg2 Argument for the second placeholder.
+     */
+    public static void v(String tag, String format, float arg1, float arg2) {
+        if (isLoggable(VERBOSE)) {
+            println(VERBOSE, tag, format(format, arg1, arg2));
+        }
+    }
+
 
     /**
      * Prints a message at DEBUG priority.
@@ -124,6 +223,72 @@ public class Log {
         d(tag, msg, null);
     }
 
+    /**
+     * Prints a message at DEBUG priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void d(String tag, String format, long arg) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void d(String tag, String format, float arg) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void d(String tag, String format, double arg) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where the argument goes.
+     * @param arg Argument for the placeholder.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg));
+        }
+    }
+
+    /**
+     * Prints a message at DEBUG priority, formatting it only if that priority is loggable.
+     *
+     * @param tag Tag for for the log data. Can be used to organize log statements.
+     * @param format The message, with "{}" where each argument goes.
+     * @param arg1 Argument for the first placeholder.
+     * @param arg2 Argument for the second placeholder.
+     */
+    public static void d(String tag, String format, float arg1, float arg2) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, format(format, arg1, arg2));
+        }
+    }
+
     /**
      * Prints a message at INFO priority.
      *
@@ -233,4 +398,67 @@ public class Log {
     public static void wtf(String tag, Throwable tr) {
         wtf(tag, null, tr);
     }
+
+    private static String format(String format, long arg) {
+        StringBuilder out = new StringBuilder(format.length() + 16);
+        int next = appendUpToPlaceholder(out, format, 0);
+        if (next >= 0) {
+            out.append(arg).append(format, next, format.length());
+        }
+        return out.toString();
+    }
+
+    private static String format(String format, float arg) {
+        StringBuilder out = new StringBuilder(format.length() + 16);
+        int next = appendUpToPlaceholder(out, format, 0);
+        if (next >= 0) {
+            out.append(arg).append(format, next, format.length());
+        }
+        return out.toString();
+    }
+
+    private static String format(String format, double arg) {
+        StringBuilder out = new StringBuilder(format.length() + 16);
+        int next = appendUpToPlaceholder(out, format, 0);
+        if (next >= 0) {
+            out.append(arg).append(format, next, format.length());
+        }
+        return out.toString();
+    }
+
+    private static String format(String format, Object arg) {
+        StringBuilder out = new StringBuilder(format.length() + 16);
+        int next = appendUpToPlaceholder(out, format, 0);
+        if (next >= 0) {
+            out.append(arg).append(format, next, format.length());
+        }
+        return out.toString();
+    }
+
+    private static String format(String format, float arg1, float arg2) {
+        StringBuilder out = new StringBuilder(format.length() + 32);
+        int next = appendUpToPlaceholder(out, format, 0);
+        if (next >= 0) {
+            out.append(arg1);
+            next = appendUpToPlaceholder(out, format, next);
+            if (next >= 0) {
+                out.append(arg2).append(format, next, format.length());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends format from index from up to its next "{}" placeholder, or to its end if there is
+     * none. Returns the index just past the placeholder, or -1 if there was none.
+     */
+    private static int appendUpToPlaceholder(StringBuilder out, String format, int from) {
+        int at = format.indexOf("{}", from);
+        if (at < 0) {
+            out.append(format, from, format.length());
+            return -1;
+        }
+        out.append(format, from, at);
+        return at + 2;
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity store of log entries in which each new entry replaces the oldest one once the
+ * ring is full.
+ *
+ * <p>Every entry ever added gets the next sequence number, so an entry can be referred to by
+ * its sequence number for as long as it is held: from {@link #getFirstSequence()} up to, but not
+ * including, {@link #getNextSequence()}. This class is not thread-safe.</p>
+ */
+public class LogRing {
+
+    private final int[] priorities;
+    private final String[] tags;
+    private final String[] texts;
+    private long nextSequence;
+    private int size;
+
+    /**
+     * @param capacity Number of entries held at most.
+     */
+    public LogRing(int capacity) {
+        priorities = new int[capacity];
+        tags = new String[capacity];
+        texts = new String[capacity];
+    }
+
+    public int getCapacity() {
+        return texts.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Sequence number of the oldest entry held. */
+    public long getFirstSequence() {
+        return nextSequence - size;
+    }
+
+    /** Sequence number the next entry will get. */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Adds an entry, dropping the oldest one if the ring is full, and returns its sequence
+     * number.
+     */
+    public long add(int priority, String tag, String text) {
+        int slot = (int) (nextSequence % texts.length);
+        priorities[slot] = priority;
+        tags[slot] = tag;
+        texts[slot] = text;
+        if (size < texts.length) {
+            size++;
+        }
+        return nextSequence++;
+    }
+
+    /** Moves all entries of another ring into this one, oldest first, and clears it. */
+    public void drainFrom(LogRing other) {
+        for (long sequence = other.getFirstSequence(); sequence < other.nextSequence; sequence++) {
+            int slot = other.slotOf(sequence);
+            add(other.priorities[slot], other.tags[slot], other.texts[slot]);
+        }
+        other.clear();
+    }
+
+    public int getPriority(long sequence) {
+        return priorities[slotOf(sequence)];
+    }
+
+    public String getTag(long sequence) {
+        return tags[slotOf(sequence)];
+    }
+
+    public String getText(long sequence) {
+        return texts[slotOf(sequence)];
+    }
+
+    /** Drops every entry. Sequence numbers carry on from where they were. */
+    public void clear() {
+        Arrays.fill(tags, null);
+        Arrays.fill(texts, null);
+        size = 0;
+    }
+
+    private int slotOf(long sequence) {
+        if (sequence < getFirstSequence() || sequence >= nextSequence) {
+            throw new IndexOutOfBoundsException("entry " + sequence + " is not held");
+        }
+        return (int) (sequence % texts.length);
+    }
+}
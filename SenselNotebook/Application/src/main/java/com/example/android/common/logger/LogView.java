@@ -15,25 +15,64 @@
  */
 package com.example.android.common.logger;
 
-import android.app.Activity;
 import android.content.Context;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.*;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
-/** Simple TextView which is used to output log data received through the LogNode interface.
+/** Simple list which is used to output log data received through the LogNode interface.
+ *
+ * <p>Entries are kept in a {@link LogRing} of fixed capacity, so however long the session, the
+ * view holds at most that many and only lays out the rows on screen. The list can be narrowed
+ * to a tag and a minimum priority; the filter keeps the sequence numbers of matching entries
+ * rather than copies of them.</p>
 */
-public class LogView extends TextView implements LogNode {
+public class LogView extends ListView implements LogNode {
+
+    /** Default number of entries kept. */
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    private final LogRing mEntries;
+    private EntryAdapter mAdapter;
+
+    // Only shown: entries with this tag, if not null, and at least this priority.
+    private String mTagFilter;
+    private int mMinPriority = Log.NONE;
 
     public LogView(Context context) {
+        this(context, DEFAULT_CAPACITY);
+    }
+
+    public LogView(Context context, int capacity) {
         super(context);
+        mEntries = new LogRing(capacity);
+        mPending = new LogRing(capacity);
+        init();
     }
 
     public LogView(Context context, AttributeSet attrs) {
-        super(context, attrs);
+        this(context, attrs, android.R.attr.listViewStyle);
     }
 
     public LogView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
+        mEntries = new LogRing(DEFAULT_CAPACITY);
+        mPending = new LogRing(DEFAULT_CAPACITY);
+        init();
+    }
+
+    private void init() {
+        // Keep the newest entries in view while the user has not scrolled away from them.
+        setStackFromBottom(true);
+        setTranscriptMode(TRANSCRIPT_MODE_NORMAL);
+        mAdapter = new EntryAdapter();
+        setAdapter(mAdapter);
     }
 
     /**
@@ -47,58 +86,23 @@ public class LogView extends TextView implements LogNode {
     @Override
     public void println(int priority, String tag, String msg, Throwable tr) {
 
-        
-        String priorityStr = null;
-
-        // For the purposes of this View, we want to print the priority as readable text.
-        switch(priority) {
-            case android.util.Log.VERBOSE:
-                priorityStr = "VERBOSE";
-                break;
-            case android.util.Log.DEBUG:
-                priorityStr = "DEBUG";
-                break;
-            case android.util.Log.INFO:
-                priorityStr = "INFO";
-                break;
-            case android.util.Log.WARN:
-                priorityStr = "WARN";
-                break;
-            case android.util.Log.ERROR:
-                priorityStr = "ERROR";
-                break;
-            case android.util.Log.ASSERT:
-                priorityStr = "ASSERT";
-                break;
-            default:
-                break;
-        }
-
         // Handily, the Log class has a facility for converting a stack trace into a usable string.
-        String exceptionStr = null;
+        String text = msg;
         if (tr != null) {
-            exceptionStr = android.util.Log.getStackTraceString(tr);
+            String exceptionStr = android.util.Log.getStackTraceString(tr);
+            text = msg == null ? exceptionStr : msg + "\t" + exceptionStr;
         }
 
-        // Take the priority, tag, message, and exception, and concatenate as necessary
-        // into one usable line of text.
-        final StringBuilder outputBuilder = new StringBuilder();
-
-        String delimiter = "\t";
-        appendIfNotNull(outputBuilder, priorityStr, delimiter);
-        appendIfNotNull(outputBuilder, tag, delimiter);
-        appendIfNotNull(outputBuilder, msg, delimiter);
-        appendIfNotNull(outputBuilder, exceptionStr, delimiter);
-
         // In case this was originally called from an AsyncTask or some other off-UI thread,
-        // make sure the update occurs within the UI thread.
-        ((Activity) getContext()).runOnUiThread( (new Thread(new Runnable() {
-            @Override
-            public void run() {
-                // Display the text we just generated within the LogView.
-                appendToLog(outputBuilder.toString());
+        // make sure the update occurs within the UI thread. Entries that arrive before the UI
+        // thread gets to them are added together, with one layout pass.
+        synchronized (mPending) {
+            mPending.add(priority, tag, text);
+            if (!mAppendPosted) {
+                mAppendPosted = true;
+                mUiHandler.post(mAppendPending);
             }
-        })));
+        }
 
         if (mNext != null) {
             mNext.println(priority, tag, msg, tr);
@@ -113,6 +117,22 @@ public class LogView extends TextView implements LogNode {
         mNext = node;
     }
 
+    /**
+     * Shows only entries with the given tag, or all tags if it is null, and at least the given
+     * priority, or all priorities if it is {@link Log#NONE}. Must be called on the UI thread.
+     */
+    public void setFilter(String tag, int minPriority) {
+        mTagFilter = tag;
+        mMinPriority = minPriority;
+        mAdapter.refilter();
+    }
+
+    /** Drops every entry. Must be called on the UI thread. */
+    public void clear() {
+        mEntries.clear();
+        mAdapter.refilter();
+    }
+
     /** Takes a string and adds to it, with a separator, if the bit to be added isn't null. Since
      * the logger takes so many arguments that might be null, this method helps cut out some of the
      * agonizing tedium of writing the same 3 lines over and over.
@@ -133,13 +153,131 @@ public class LogView extends TextView implements LogNode {
         return source;
     }
 
+    /** For the purposes of this View, we want to print the priority as readable text. */
+    private static String priorityString(int priority) {
+        switch(priority) {
+            case android.util.Log.VERBOSE:
+                return "VERBOSE";
+            case android.util.Log.DEBUG:
+                return "DEBUG";
+            case android.util.Log.INFO:
+                return "INFO";
+            case android.util.Log.WARN:
+                return "WARN";
+            case android.util.Log.ERROR:
+                return "ERROR";
+            case android.util.Log.ASSERT:
+                return "ASSERT";
+            default:
+                return null;
+        }
+    }
+
     // The next LogNode in the chain.
     LogNode mNext;
 
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    // Entries waiting for the UI thread, and whether it has been asked to add them.
+    private final LogRing mPending;
+    private boolean mAppendPosted;
+
+    private final Runnable mAppendPending = new Runnable() {
+        @Override
+        public void run() {
+            long first = mEntries.getNextSequence();
+            synchronized (mPending) {
+                mEntries.drainFrom(mPending);
+                mAppendPosted = false;
+            }
+            mAdapter.appended(first);
+        }
+    };
+
     /** Outputs the string as a new line of log data in the LogView. */
     public void appendToLog(String s) {
-        append("\n" + s);
+        mAdapter.appended(mEntries.add(Log.NONE, null, s));
     }
 
+    /**
+     * Lists the entries that pass the filter, by sequence number in a ring of the same
+     * capacity as the entries, and makes rows only for those on screen.
+     */
+    private class EntryAdapter extends BaseAdapter {
+        private final long[] mMatches = new long[mEntries.getCapacity()];
+        private int mMatchStart, mMatchCount;
+        private final StringBuilder mRowText = new StringBuilder();
+
+        private boolean passes(long sequence) {
+            return mEntries.getPriority(sequence) >= mMinPriority
+                    && (mTagFilter == null || mTagFilter.equals(mEntries.getTag(sequence)));
+        }
+
+        /** Picks up the entries from sequence number first onwards. */
+        void appended(long first) {
+            long oldest = mEntries.getFirstSequence();
+            while (mMatchCount > 0 && mMatches[mMatchStart] < oldest) {
+                mMatchStart = (mMatchStart + 1) % mMatches.length;
+                mMatchCount--;
+            }
+            for (long sequence = Math.max(first, oldest); sequence < mEntries.getNextSequence();
+                    sequence++) {
+                if (passes(sequence)) {
+                    mMatches[(mMatchStart + mMatchCount) % mMatches.length] = sequence;
+                    mMatchCount++;
+                }
+            }
+            notifyDataSetChanged();
+        }
 
+        void refilter() {
+            mMatchStart = 0;
+            mMatchCount = 0;
+            appended(mEntries.getFirstSequence());
+        }
+
+        @Override
+        public int getCount() {
+            return mMatchCount;
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mEntries.getText(sequenceAt(position));
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return sequenceAt(position);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        private long sequenceAt(int position) {
+            return mMatches[(mMatchStart + position) % mMatches.length];
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView row = (TextView) convertView;
+            if (row == null) {
+                row = new TextView(getContext());
+                row.setTypeface(Typeface.MONOSPACE);
+                row.setTextAppearance(getContext(), android.R.style.TextAppearance_Holo_Small);
+            }
+            long sequence = sequenceAt(position);
+
+            // Take the priority, tag, message, and exception, and concatenate as necessary
+            // into one usable line of text.
+            String delimiter = "\t";
+            mRowText.setLength(0);
+            appendIfNotNull(mRowText, priorityString(mEntries.getPriority(sequence)), delimiter);
+            appendIfNotNull(mRowText, mEntries.getTag(sequence), delimiter);
+            appendIfNotNull(mRowText, mEntries.getText(sequence), delimiter);
+            row.setText(mRowText);
+            return row;
+        }
+    }
 }
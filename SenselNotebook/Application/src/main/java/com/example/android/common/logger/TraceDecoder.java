@@ -0,0 +1,173 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Desktop tool that prints a {@link TraceLog} file as a timeline, oldest record first: wall-clock
+ * time, milliseconds since the previous record, event name and arguments. Gaps between records
+ * longer than the given threshold are marked, which is where input stalled.
+ *
+ * <pre>
+ * adb pull /data/data/com.example.android.bluetoothchat/files/trace.bin
+ * java -cp classes com.example.android.common.logger.TraceDecoder trace.bin [gap-ms]
+ * </pre>
+ */
+public class TraceDecoder {
+
+    private static final double DEFAULT_GAP_MILLIS = 50;
+
+    private static class Event {
+        final String name;
+        final byte[] argKinds;
+
+        Event(String name, byte[] argKinds) {
+            this.name = name;
+            this.argKinds = argKinds;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceDecoder <trace file> [gap-ms]");
+            System.exit(2);
+        }
+        double gapMillis = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_GAP_MILLIS;
+        decode(new File(args[0]), gapMillis, System.out);
+    }
+
+    public static void decode(File file, double gapMillis, PrintStream out) throws IOException {
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = ByteBuffer.allocate((int) raf.length());
+            raf.getChannel().read(buffer, 0);
+        } finally {
+            raf.close();
+        }
+        if (buffer.capacity() < TraceLog.HEADER_SIZE || buffer.getInt(0) != TraceLog.MAGIC) {
+            throw new IOException(file + " is not a trace");
+        }
+        if (buffer.getShort(4) != TraceLog.FORMAT_VERSION
+                || buffer.getShort(6) != TraceLog.RECORD_SIZE) {
+            throw new IOException(file + " has an unknown trace format");
+        }
+        int capacity = buffer.getInt(8);
+        int eventEntries = buffer.getInt(12);
+        long startMillis = buffer.getLong(16);
+        long startNanos = buffer.getLong(24);
+
+        HashMap<Integer, Event> events = new HashMap<Integer, Event>();
+        int nameLength = TraceLog.EVENT_ENTRY_SIZE - 2 - TraceLog.MAX_ARGS;
+        for (int i = 0; i < eventEntries; i++) {
+            int offset = TraceLog.HEADER_SIZE + i * TraceLog.EVENT_ENTRY_SIZE;
+            byte[] kinds = new byte[TraceLog.MAX_ARGS];
+            byte[] name = new byte[nameLength];
+            buffer.position(offset + 2);
+            buffer.get(kinds);
+            buffer.get(name);
+            int length = 0;
+            while (length < nameLength && name[length] != 0) {
+                length++;
+            }
+            if (length > 0) {
+                events.put((int) buffer.getShort(offset),
+                        new Event(new String(name, 0, length, TraceLog.ASCII), kinds));
+            }
+        }
+
+        // keep the complete records among the last capacity ones written, ordered by time: a
+        // record being written has sequence -1, and one from an earlier lap is too old
+        final int recordsOffset = TraceLog.HEADER_SIZE + eventEntries * TraceLog.EVENT_ENTRY_SIZE;
+        int mask = capacity - 1;
+        int newest = -1;
+        for (int slot = 0; slot < capacity; slot++) {
+            int sequence = buffer.getInt(recordsOffset + slot * TraceLog.RECORD_SIZE);
+            if (isComplete(buffer, recordsOffset, slot, mask)) {
+                newest = Math.max(newest, sequence);
+            }
+        }
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int sequence = buffer.getInt(recordsOffset + slot * TraceLog.RECORD_SIZE);
+            if (isComplete(buffer, recordsOffset, slot, mask)
+                    && (long) sequence > (long) newest - capacity) {
+                slots.add(slot);
+            }
+        }
+        final ByteBuffer records = buffer;
+        Collections.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long timeA = records.getLong(recordsOffset + a * TraceLog.RECORD_SIZE + 8);
+                long timeB = records.getLong(recordsOffset + b * TraceLog.RECORD_SIZE + 8);
+                return timeA < timeB ? -1 : timeA == timeB ? 0 : 1;
+            }
+        });
+
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        out.println("trace started " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)
+                .format(new Date(startMillis)) + ", " + slots.size() + " of " + capacity
+                + " records");
+        long previous = -1;
+        StringBuilder line = new StringBuilder();
+        for (int slot : slots) {
+            int offset = recordsOffset + slot * TraceLog.RECORD_SIZE;
+            long nanos = buffer.getLong(offset + 8);
+            double sincePrevious = previous < 0 ? 0 : (nanos - previous) / 1e6;
+            if (previous >= 0 && sincePrevious > gapMillis) {
+                out.printf(Locale.US, "---- %.1f ms without records%n", sincePrevious);
+            }
+            previous = nanos;
+            int id = buffer.getInt(offset + 4);
+            Event event = events.get(id);
+
+            line.setLength(0);
+            line.append(time.format(new Date(startMillis + (nanos - startNanos) / 1000000)));
+            line.append(String.format(Locale.US, " %+9.3f ", sincePrevious));
+            line.append(event == null ? "event " + id : event.name);
+            for (int i = 0; i < TraceLog.MAX_ARGS; i++) {
+                int value = buffer.getInt(offset + 16 + 4 * i);
+                int kind = event == null ? 'i' : event.argKinds[i];
+                if (kind == 'f') {
+                    line.append(' ').append(Float.intBitsToFloat(value));
+                } else if (kind == 'i') {
+                    line.append(' ').append(value);
+                }
+            }
+            out.println(line);
+        }
+    }
+
+    /** Whether the record in slot was written to the end and belongs in that slot. */
+    private static boolean isComplete(ByteBuffer buffer, int recordsOffset, int slot, int mask) {
+        int offset = recordsOffset + slot * TraceLog.RECORD_SIZE;
+        int sequence = buffer.getInt(offset);
+        return sequence >= 0 && (sequence & mask) == slot && buffer.getLong(offset + 8) != 0;
+    }
+}
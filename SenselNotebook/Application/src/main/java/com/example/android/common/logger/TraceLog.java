@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.common.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary trace of numbered events, written to a memory-mapped file that works as a ring.
+ *
+ * <p>Unlike the text logs of the {@link LogNode} chain, a trace record costs a few stores into
+ * mapped memory and no allocation, so tracing can stay on in the field. The operating system
+ * writes the mapped pages back on its own, so the file still has the latest records after the
+ * process dies. Once the ring is full, each record replaces the oldest one. The file describes
+ * its own events, and {@link TraceDecoder} turns it into a readable timeline.</p>
+ *
+ * <p>Like {@link Log}, the static methods go to one trace set with {@link #setTraceLog}, and do
+ * nothing while none is set.</p>
+ *
+ * <pre>
+ * header   magic "SNTL", format version, record size, capacity, event table size,
+ *          long wall-clock millis and long nanoTime when the trace was started
+ * events   per defined event: short id, 4 argument kinds ('i' int, 'f' float, or 0),
+ *          name in ASCII padded with zeros
+ * records  int sequence, int event, long nanoTime, 4 int arguments
+ * </pre>
+ *
+ * <p>The sequence of a record is set to -1 before the rest of it is written and to the
+ * record's number after, so a record cut short by the process dying is never mistaken for the
+ * record that was in its slot before.</p>
+ */
+public final class TraceLog {
+
+    public static final int MAGIC = 0x534e544c; // "SNTL"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 40;
+    public static final int RECORD_SIZE = 32;
+    public static final int EVENT_TABLE_ENTRIES = 64;
+    public static final int EVENT_ENTRY_SIZE = 64;
+    public static final int MAX_ARGS = 4;
+    /** Default number of records in the ring. */
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static volatile TraceLog sTraceLog;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mMask;
+    private final int mRecordsOffset;
+    private final AtomicInteger mSequence = new AtomicInteger();
+    private int mEventCount;
+
+    private TraceLog(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        mFile = file;
+        mBuffer = buffer;
+        mMask = capacity - 1;
+        mRecordsOffset = HEADER_SIZE + EVENT_TABLE_ENTRIES * EVENT_ENTRY_SIZE;
+    }
+
+    /**
+     * Starts a new trace in file, keeping the previous one, if any, next to it with ".1"
+     * appended to its name.
+     *
+     * @param capacity Number of records the ring holds, rounded up to a power of two.
+     */
+    public static TraceLog open(File file, int capacity) throws IOException {
+        capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        if (file.exists()) {
+            File previous = new File(file.getPath() + ".1");
+            if (!file.renameTo(previous)) {
+                throw new IOException("could not keep " + file);
+            }
+        }
+        long size = HEADER_SIZE + EVENT_TABLE_ENTRIES * EVENT_ENTRY_SIZE
+                + (long) capacity * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, (short) FORMAT_VERSION);
+            buffer.putShort(6, (short) RECORD_SIZE);
+            buffer.putInt(8, capacity);
+            buffer.putInt(12, EVENT_TABLE_ENTRIES);
+            buffer.putLong(16, System.currentTimeMillis());
+            buffer.putLong(24, System.nanoTime());
+            return new TraceLog(raf, buffer, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Sets the trace the static methods write to, or null to stop tracing. */
+    public static void setTraceLog(TraceLog traceLog) {
+        sTraceLog = traceLog;
+    }
+
+    public static TraceLog getTraceLog() {
+        return sTraceLog;
+    }
+
+    /**
+     * Names an event for the decoder. argKinds has one character per argument the event uses:
+     * 'i' for an int, 'f' for a float passed through {@link Float#floatToRawIntBits}.
+     */
+    public synchronized void defineEvent(int event, String name, String argKinds) {
+        if (mEventCount == EVENT_TABLE_ENTRIES) {
+            throw new IllegalStateException("too many events");
+        }
+        if (argKinds.length() > MAX_ARGS) {
+            throw new IllegalArgumentException("at most " + MAX_ARGS + " arguments");
+        }
+        int offset = HEADER_SIZE + mEventCount * EVENT_ENTRY_SIZE;
+        mBuffer.putShort(offset, (short) event);
+        for (int i = 0; i < MAX_ARGS; i++) {
+            mBuffer.put(offset + 2 + i, i < argKinds.length() ? (byte) argKinds.charAt(i) : 0);
+        }
+        byte[] bytes = name.getBytes(ASCII);
+        int length = Math.min(bytes.length, EVENT_ENTRY_SIZE - 2 - MAX_ARGS);
+        for (int i = 0; i < EVENT_ENTRY_SIZE - 2 - MAX_ARGS; i++) {
+            mBuffer.put(offset + 2 + MAX_ARGS + i, i < length ? bytes[i] : 0);
+        }
+        mEventCount++;
+    }
+
+    /**
+     * Writes one record. Safe to call from any thread; records from different threads only
+     * share the sequence counter.
+     */
+    public void write(int event, int a, int b, int c, int d) {
+        // kept non-negative, so that it never looks like the marker
+        int sequence = mSequence.getAndIncrement() & Integer.MAX_VALUE;
+        int offset = mRecordsOffset + (sequence & mMask) * RECORD_SIZE;
+        mBuffer.putInt(offset, -1);
+        mBuffer.putInt(offset + 4, event);
+        mBuffer.putLong(offset + 8, System.nanoTime());
+        mBuffer.putInt(offset + 16, a);
+        mBuffer.putInt(offset + 20, b);
+        mBuffer.putInt(offset + 24, c);
+        mBuffer.putInt(offset + 28, d);
+        // written last: until then the slot holds neither this record nor the one before
+        mBuffer.putInt(offset, sequence);
+    }
+
+    /** Stops tracing to this file. The records written so far stay in it. */
+    public void close() throws IOException {
+        if (sTraceLog == this) {
+            sTraceLog = null;
+        }
+        mBuffer.force();
+        mFile.close();
+    }
+
+    /**
+     * Records an event without arguments.
+     *
+     * @param event Event id, as defined with {@link #defineEvent}.
+     */
+    public static void trace(int event) {
+        TraceLog traceLog = sTraceLog;
+        if (traceLog != null) {
+            traceLog.write(event, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Records an event with int arguments.
+     *
+     * @param event Event id, as defined with {@link #defineEvent}.
+     */
+    public static void trace(int event, int a) {
+        TraceLog traceLog = sTraceLog;
+        if (traceLog != null) {
+            traceLog.write(event, a, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Records an event with int arguments.
+     *
+     * @param event Event id, as defined with {@link #defineEvent}.
+     */
+    public static void trace(int event, int a, int b) {
+        TraceLog traceLog = sTraceLog;
+        if (traceLog != null) {
+            traceLog.write(event, a, b, 0, 0);
+        }
+    }
+
+    /**
+     * Records an event with int arguments.
+     *
+     * @param event Event id, as defined with {@link #defineEvent}.
+     */
+    public static void trace(int event, int a, int b, int c, int d) {
+        TraceLog traceLog = sTraceLog;
+        if (traceLog != null) {
+            traceLog.write(event, a, b, c, d);
+        }
+    }
+
+    /**
+     * Records an event with two int and two float arguments, in that order.
+     *
+     * @param event Event id, as defined with {@link #defineEvent}.
+     */
+    public static void trace(int event, int a, int b, float c, float d) {
+        TraceLog traceLog = sTraceLog;
+        if (traceLog != null) {
+            traceLog.write(event, a, b, Float.floatToRawIntBits(c), Float.floatToRawIntBits(d));
+        }
+    }
+}
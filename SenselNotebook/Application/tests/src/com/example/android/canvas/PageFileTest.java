@@ -0,0 +1,236 @@
+package com.example.android.canvas;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saving and reopening page files: appended saves, the rewrite that drops removed strokes, and
+ * files whose newest save was torn or corrupted, which have to open at the save before it.
+ */
+public class PageFileTest extends TestCase {
+    private static final int FOOTER_SIZE = 16;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("page", PageFile.EXTENSION);
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    public void testWriteAndOpen() throws IOException {
+        List<Stroke> strokes = strokes(0, 20, 30);
+        PageFile.write(strokes, 5, file, null);
+
+        PageFile opened = PageFile.open(file);
+        assertEquals(5, opened.getVersion());
+        assertSameStrokes(strokes, opened.strokes());
+    }
+
+    public void testAppendWritesOnlyNewStrokes() throws IOException {
+        List<Stroke> strokes = strokes(0, 50, 30);
+        PageFile first = PageFile.write(strokes, 1, file, null);
+        long length = file.length();
+        long fileId = fileId();
+
+        Stroke added = stroke(50, 30);
+        strokes.add(added);
+        PageFile second = PageFile.write(strokes, 2, file, first);
+        assertTrue(second.getWrittenBytes() < length / 20);
+        assertEquals(length + second.getWrittenBytes(), file.length());
+        assertEquals(fileId, fileId());
+
+        strokes.remove(10);
+        PageFile third = PageFile.write(strokes, 3, file, second);
+        assertTrue(third.getWrittenBytes() < length / 20);
+        assertEquals(fileId, fileId());
+
+        PageFile opened = PageFile.open(file);
+        assertEquals(3, opened.getVersion());
+        assertSameStrokes(strokes, opened.strokes());
+    }
+
+    public void testResaveOfOpenedStrokesReusesTheirData() throws IOException {
+        List<Stroke> strokes = strokes(0, 40, 30);
+        PageFile.write(strokes, 1, file, null);
+        long length = file.length();
+
+        List<Stroke> loaded = new ArrayList<Stroke>(PageFile.open(file).strokes());
+        loaded.add(stroke(40, 30));
+        strokes.add(loaded.get(40));
+        PageFile saved = PageFile.write(loaded, 2, file, null);
+        assertTrue(saved.getWrittenBytes() < length / 20);
+        assertFalse(loaded.get(0).isLoaded());
+
+        assertSameStrokes(strokes, PageFile.open(file).strokes());
+    }
+
+    public void testTornSaveOpensPreviousSave() throws IOException {
+        List<Stroke> strokes = strokes(0, 10, 30);
+        PageFile first = PageFile.write(strokes, 1, file, null);
+        long firstLength = file.length();
+        List<Stroke> more = new ArrayList<Stroke>(strokes);
+        more.add(stroke(10, 30));
+        PageFile.write(more, 2, file, first);
+        truncate(file.length() - 5);
+
+        PageFile opened = PageFile.open(file);
+        assertEquals(1, opened.getVersion());
+        assertSameStrokes(strokes, opened.strokes());
+
+        // the next save goes where the torn one started
+        List<Stroke> loaded = new ArrayList<Stroke>(opened.strokes());
+        loaded.add(stroke(20, 30));
+        PageFile saved = PageFile.write(loaded, 3, file, null);
+        assertEquals(firstLength + saved.getWrittenBytes(), file.length());
+        strokes.add(loaded.get(10));
+        assertSameStrokes(strokes, PageFile.open(file).strokes());
+    }
+
+    public void testSaveWithoutFooterOpensPreviousSave() throws IOException {
+        List<Stroke> strokes = strokes(0, 10, 30);
+        PageFile.write(strokes, 1, file, null);
+        long length = file.length();
+        // point data and part of an index, as a save interrupted before its footer leaves them
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(length);
+            for (int i = 0; i < 300; i++) {
+                raf.write(i * 7);
+            }
+        } finally {
+            raf.close();
+        }
+
+        PageFile opened = PageFile.open(file);
+        assertEquals(1, opened.getVersion());
+        assertSameStrokes(strokes, opened.strokes());
+    }
+
+    public void testCorruptIndexOpensPreviousSave() throws IOException {
+        List<Stroke> strokes = strokes(0, 10, 30);
+        PageFile first = PageFile.write(strokes, 1, file, null);
+        List<Stroke> more = new ArrayList<Stroke>(strokes);
+        more.add(stroke(10, 30));
+        PageFile.write(more, 2, file, first);
+        // the bottom bound of the last entry of the newest index
+        flip(file.length() - FOOTER_SIZE - 1);
+
+        PageFile opened = PageFile.open(file);
+        assertEquals(1, opened.getVersion());
+        assertSameStrokes(strokes, opened.strokes());
+    }
+
+    public void testRemovingMostStrokesRewritesFile() throws IOException {
+        List<Stroke> strokes = strokes(0, 200, 400);
+        PageFile first = PageFile.write(strokes, 1, file, null);
+        List<Stroke> loaded = first.strokes();
+        long length = file.length();
+        long fileId = fileId();
+
+        List<Stroke> kept = new ArrayList<Stroke>();
+        for (int i = 0; i < 200; i += 50) {
+            kept.add(strokes.get(i));
+        }
+        PageFile rewritten = PageFile.write(kept, 2, file, first);
+        assertEquals(file.length(), rewritten.getWrittenBytes());
+        assertTrue(file.length() < length / 10);
+        assertTrue(fileId != fileId());
+        assertSameStrokes(kept, PageFile.open(file).strokes());
+
+        // strokes still mapped from the replaced file decode from the old mapping
+        assertSameStrokes(strokes, loaded);
+    }
+
+    public void testCorruptPointDataIsCutShort() throws IOException {
+        List<Stroke> strokes = strokes(0, 1, 30);
+        PageFile.write(strokes, 1, file, null);
+        // a varint too long for an int where the stroke's second one starts
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(17);
+            for (int i = 0; i < 6; i++) {
+                raf.write(0xff);
+            }
+        } finally {
+            raf.close();
+        }
+
+        Stroke stroke = PageFile.open(file).strokes().get(0);
+        assertTrue(stroke.getPointCount() < 30);
+    }
+
+    private long fileId() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(8);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flip(long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<Stroke> strokes(int first, int count, int points) {
+        ArrayList<Stroke> strokes = new ArrayList<Stroke>(count);
+        for (int i = first; i < first + count; i++) {
+            strokes.add(stroke(i, points));
+        }
+        return strokes;
+    }
+
+    private static Stroke stroke(int n, int points) {
+        Stroke stroke = new Stroke(0xff000000 | n, 1 + n % 3, n * 3.17f, n * 1.25f);
+        for (int i = 1; i < points; i++) {
+            stroke.addPoint(n * 3.17f + i * 0.73f, n * 1.25f + (i * i % 97) * 0.31f);
+        }
+        stroke.finish();
+        return stroke;
+    }
+
+    private static void assertSameStrokes(List<Stroke> expected, List<Stroke> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Stroke a = expected.get(i);
+            Stroke b = actual.get(i);
+            assertEquals(a.getColor(), b.getColor());
+            assertEquals(a.getWidth(), b.getWidth(), 0f);
+            assertEquals(a.getPointCount(), b.getPointCount());
+            for (int p = 0; p < a.getPointCount(); p++) {
+                assertEquals(a.getX(p), b.getX(p), PageFile.QUANTUM);
+                assertEquals(a.getY(p), b.getY(p), PageFile.QUANTUM);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.canvas;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Crash recovery of the stroke journal: records are written through a real journal, the file
+ * is torn or corrupted the way an interrupted write would leave it, and a fresh journal has to
+ * replay exactly the records before the damage.
+ */
+public class StrokeJournalTest extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("page", ".journal");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testReplayRestoresLoggedChanges() throws IOException {
+        Page page = new Page();
+        StrokeJournal journal = new StrokeJournal(file, 4, 100);
+        journal.open(page);
+        page.add(stroke(0));
+        page.add(stroke(1));
+        page.add(stroke(2));
+        page.remove(page.getStrokes().get(1));
+        journal.close();
+
+        Page replayed = new Page();
+        assertEquals(4, new StrokeJournal(file, 4, 100).replay(replayed));
+        assertEquals(page.getVersion(), replayed.getVersion());
+        assertSameStrokes(page, replayed);
+    }
+
+    public void testReplayStopsAtTornRecord() throws IOException {
+        long[] ends = writeStrokes(3);
+        truncate(ends[2] - 3);
+
+        Page replayed = new Page();
+        StrokeJournal journal = new StrokeJournal(file, 4, 100);
+        assertEquals(2, journal.replay(replayed));
+        assertEquals(2, replayed.size());
+        assertEquals(ends[1], journal.getValidLength());
+        assertEquals(1f, replayed.getStrokes().get(1).getX(0), 0f);
+    }
+
+    public void testReplayStopsAtCrcMismatch() throws IOException {
+        long[] ends = writeStrokes(3);
+        // a byte inside the second record's stroke data; its length still fits
+        flip(ends[0] + 20);
+
+        Page replayed = new Page();
+        StrokeJournal journal = new StrokeJournal(file, 4, 100);
+        assertEquals(1, journal.replay(replayed));
+        assertEquals(1, replayed.size());
+        assertEquals(ends[0], journal.getValidLength());
+    }
+
+    public void testReplayStopsAtCorruptLength() throws IOException {
+        long[] ends = writeStrokes(2);
+        flip(ends[0]);
+
+        Page replayed = new Page();
+        assertEquals(1, new StrokeJournal(file, 4, 100).replay(replayed));
+        assertEquals(1, replayed.size());
+    }
+
+    public void testOpenCutsOffDamagedTail() throws IOException {
+        long[] ends = writeStrokes(3);
+        truncate(ends[2] - 3);
+
+        Page page = new Page();
+        StrokeJournal journal = new StrokeJournal(file, 4, 100);
+        journal.replay(page);
+        journal.open(page);
+        page.add(stroke(7));
+        journal.close();
+
+        Page replayed = new Page();
+        assertEquals(3, new StrokeJournal(file, 4, 100).replay(replayed));
+        assertEquals(3, replayed.getVersion());
+        assertEquals(7f, replayed.getStrokes().get(2).getX(0), 0f);
+    }
+
+    public void testReplaySkipsSavedRecords() throws IOException {
+        writeStrokes(3);
+
+        Page saved = new Page();
+        new StrokeJournal(file, 4, 100).replay(saved);
+        Page page = new Page();
+        page.load(saved.getStrokes().subList(0, 2), 2);
+
+        assertEquals(1, new StrokeJournal(file, 4, 100).replay(page));
+        assertEquals(3, page.size());
+        assertEquals(3, page.getVersion());
+    }
+
+    public void testCheckpointEmptiesJournal() throws IOException {
+        Page page = new Page();
+        StrokeJournal journal = new StrokeJournal(file, 4, 100);
+        journal.open(page);
+        page.add(stroke(0));
+        page.add(stroke(1));
+        journal.checkpoint(page.getVersion());
+        journal.close();
+
+        Page replayed = new Page();
+        assertEquals(0, new StrokeJournal(file, 4, 100).replay(replayed));
+        assertEquals(0, file.length());
+    }
+
+    /**
+     * Journals one stroke per record and returns where each record ends, once the writer has
+     * finished.
+     */
+    private long[] writeStrokes(int count) throws IOException {
+        long[] ends = new long[count];
+        Page page = new Page();
+        for (int i = 0; i < count; i++) {
+            StrokeJournal journal = new StrokeJournal(file, 4, 100);
+            journal.open(page);
+            page.add(stroke(i));
+            journal.close();
+            // replay waits for the closing writer
+            new StrokeJournal(file, 4, 100).replay(new Page());
+            ends[i] = file.length();
+        }
+        return ends;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void flip(long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Stroke stroke(int n) {
+        Stroke stroke = new Stroke(0xff000000 | n, 2f, n, 0);
+        for (int i = 1; i < 5; i++) {
+            stroke.addPoint(n + i * 1.5f, i * 2.25f);
+        }
+        stroke.finish();
+        return stroke;
+    }
+
+    private static void assertSameStrokes(Page expected, Page actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Stroke a = expected.getStrokes().get(i);
+            Stroke b = actual.getStrokes().get(i);
+            assertEquals(a.getColor(), b.getColor());
+            assertEquals(a.getWidth(), b.getWidth(), 0f);
+            assertEquals(a.getPointCount(), b.getPointCount());
+            for (int p = 0; p < a.getPointCount(); p++) {
+                assertEquals(a.getX(p), b.getX(p), 0f);
+                assertEquals(a.getY(p), b.getY(p), 0f);
+            }
+        }
+    }
+}